@@ -1,9 +1,12 @@
 package cientistavuador.cienbot;
 
 import cientistavuador.cienbot.ai.CienBot;
+import cientistavuador.cienbot.ai.ModelSnapshot;
+import cientistavuador.cienbot.ai.TokenStream;
 import cientistavuador.cienbot.storage.Packet;
 import cientistavuador.cienbot.storage.PacketCipherFileStream;
 import cientistavuador.cienbot.storage.PacketID;
+import cientistavuador.cienbot.storage.PacketWriter;
 import cientistavuador.cienbot.ui.LogWindow;
 import cientistavuador.cienbot.ui.LoginWindow;
 import com.formdev.flatlaf.FlatDarkLaf;
@@ -22,12 +25,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.ImageIcon;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -48,6 +56,17 @@ public class Main implements EventListener {
 
     public static final ImageIcon CIENBOT_ICON = new ImageIcon(Main.class.getResource("icon.png"));
 
+    //discord message length limit
+    public static final int MESSAGE_LIMIT = 2000;
+
+    //packets reach the disk at most this many milliseconds after being written
+    public static final long DATABASE_SYNC_INTERVAL = 1000;
+
+    //metadata of model snapshots, a complete snapshot is the full replay of the messages before it
+    //and a compacted one replaced them in the database
+    public static final String SNAPSHOT_COMPLETE = "complete";
+    public static final String SNAPSHOT_COMPACTED = "compacted";
+
     public static void main(String[] args) throws Exception {
         FlatDarkLaf.setup();
 
@@ -74,16 +93,30 @@ public class Main implements EventListener {
     private final LogWindow errorLog = new LogWindow(System.err);
 
     private PacketCipherFileStream packetStream = null;
+    private PacketWriter packetWriter = null;
     private CienBot bot = null;
     private JDA jda = null;
 
     private final List<String> messages = new ArrayList<>();
+    private byte[] modelSnapshot = null;
+    private int modelSnapshotMessages = 0;
+    private boolean modelSnapshotComplete = false;
+    //once compacted the messages before the compaction only exist in the snapshot
+    private volatile boolean messagesCompacted = false;
+    //false once the model is not the full replay of the database, compacting it would lose messages
+    private volatile boolean modelComplete = true;
+    private final AtomicInteger messagesSinceSnapshot = new AtomicInteger();
+    private volatile long compactedDatabaseSize = 0;
+    //teaching the model and queueing its packet happen together,
+    //so a snapshot taken under it matches the packets queued before it
+    private final Object modelLock = new Object();
     private String botToken = "";
     private int maxContextSize = 3;
     private int maxTokens = 64;
     private long masterUser = 0;
     private long textChannel = 0;
     private boolean startOnOpen = true;
+    private long memoryBudget = 0;
 
     private TrayIcon trayIcon = null;
     private final MenuItem startItem = new MenuItem("Iniciar");
@@ -124,6 +157,17 @@ public class Main implements EventListener {
             case PacketID.ADD_MESSAGE -> {
                 this.messages.add(new String(p.getData(), StandardCharsets.UTF_8));
             }
+            case PacketID.SET_MEMORY_BUDGET -> {
+                this.memoryBudget = ByteBuffer.wrap(p.getData()).getLong();
+            }
+            case PacketID.SET_MODEL_SNAPSHOT -> {
+                this.modelSnapshot = p.getData();
+                this.modelSnapshotMessages = this.messages.size();
+                this.modelSnapshotComplete = Boolean.parseBoolean(p.getMetadata().get(SNAPSHOT_COMPLETE));
+                if (Boolean.parseBoolean(p.getMetadata().get(SNAPSHOT_COMPACTED))) {
+                    this.messagesCompacted = true;
+                }
+            }
         }
     }
 
@@ -146,14 +190,8 @@ public class Main implements EventListener {
 
         startOnOpenItem.addActionListener((e) -> {
             this.startOnOpen = startOnOpenItem.getState();
-            try {
-                this.packetStream.writePacket(
-                        new Packet(PacketID.SET_START_ON_OPEN,
-                                new byte[]{(byte) (this.startOnOpen ? 1 : 0)}));
-                this.packetStream.flush();
-            } catch (IOException ex) {
-                ex.printStackTrace(System.err);
-            }
+            writePacket(new Packet(PacketID.SET_START_ON_OPEN,
+                    new byte[]{(byte) (this.startOnOpen ? 1 : 0)}));
         });
 
         this.startItem.addActionListener((e) -> {
@@ -170,6 +208,8 @@ public class Main implements EventListener {
         MenuItem trainBot = new MenuItem("Treinar Bot com Arquivo de Texto");
         MenuItem maxContextSizeItem = new MenuItem("Tamanho Máximo de Contexto");
         MenuItem maxTokensItem = new MenuItem("Máximo de Tokens por Mensagem");
+        MenuItem memoryBudgetItem = new MenuItem("Limite de Memória do Modelo");
+        MenuItem compactItem = new MenuItem("Compactar Banco de Dados");
 
         tokenItem.addActionListener((e) -> {
             String token = JOptionPane
@@ -178,12 +218,7 @@ public class Main implements EventListener {
                 return;
             }
             this.botToken = token;
-            try {
-                this.packetStream.writePacket(new Packet(PacketID.SET_BOT_TOKEN, token));
-                this.packetStream.flush();
-            } catch (IOException ex) {
-                ex.printStackTrace(System.err);
-            }
+            writePacket(new Packet(PacketID.SET_BOT_TOKEN, token));
 
             stopBot();
         });
@@ -196,14 +231,8 @@ public class Main implements EventListener {
             }
             try {
                 this.masterUser = Long.parseLong(idString);
-                try {
-                    this.packetStream.writePacket(
-                            new Packet(PacketID.SET_MASTER_USER,
-                                    ByteBuffer.allocate(8).putLong(this.masterUser).array()));
-                    this.packetStream.flush();
-                } catch (IOException ex) {
-                    ex.printStackTrace(System.err);
-                }
+                writePacket(new Packet(PacketID.SET_MASTER_USER,
+                        ByteBuffer.allocate(8).putLong(this.masterUser).array()));
             } catch (NumberFormatException ex) {
                 Toolkit.getDefaultToolkit().beep();
                 ex.printStackTrace(System.err);
@@ -218,14 +247,8 @@ public class Main implements EventListener {
             }
             try {
                 this.textChannel = Long.parseLong(idString);
-                try {
-                    this.packetStream.writePacket(
-                            new Packet(PacketID.SET_TEXT_CHANNEL,
-                                    ByteBuffer.allocate(8).putLong(this.textChannel).array()));
-                    this.packetStream.flush();
-                } catch (IOException ex) {
-                    ex.printStackTrace(System.err);
-                }
+                writePacket(new Packet(PacketID.SET_TEXT_CHANNEL,
+                        ByteBuffer.allocate(8).putLong(this.textChannel).array()));
             } catch (NumberFormatException ex) {
                 Toolkit.getDefaultToolkit().beep();
                 ex.printStackTrace(System.err);
@@ -244,12 +267,23 @@ public class Main implements EventListener {
                 if (file != null && file.isFile()) {
                     try {
                         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+                        List<String> lines = new ArrayList<>();
                         String line;
                         while ((line = reader.readLine()) != null) {
-                            this.bot.teach(line);
-                            this.packetStream.writePacket(new Packet(PacketID.ADD_MESSAGE, line));
+                            lines.add(line);
                         }
-                        this.packetStream.flush();
+                        synchronized (this.modelLock) {
+                            this.bot.teach(lines);
+                            for (String l : lines) {
+                                writePacket(new Packet(PacketID.ADD_MESSAGE, l));
+                            }
+                            this.messagesSinceSnapshot.addAndGet(lines.size());
+                        }
+                        saveModelSnapshot();
+                        drainPackets();
+                        System.out.println("Commits no disco: " + this.packetStream.getSyncCount()
+                                + ", latência média: " + (this.packetStream.getAverageCommitLatency() / 1_000_000) + " ms"
+                                + ", latência máxima: " + (this.packetStream.getMaxCommitLatency() / 1_000_000) + " ms");
                         Toolkit.getDefaultToolkit().beep();
                     } catch (IOException ex) {
                         ex.printStackTrace(System.err);
@@ -259,6 +293,16 @@ public class Main implements EventListener {
         });
 
         maxContextSizeItem.addActionListener((e) -> {
+            if (this.messagesCompacted) {
+                //the model can't be retrained with another size without the compacted messages
+                Toolkit.getDefaultToolkit().beep();
+                JOptionPane.showMessageDialog(
+                        null,
+                        "O banco de dados foi compactado, as mensagens antigas só existem no modelo e o tamanho do contexto não pode mais ser alterado",
+                        "Tamanho do Contexto",
+                        JOptionPane.ERROR_MESSAGE);
+                return;
+            }
             String sizeString = JOptionPane
                     .showInputDialog(null, "Insira o Tamanho do Contexto em Tokens:", "Tamanho do Contexto", JOptionPane.INFORMATION_MESSAGE);
             if (sizeString == null) {
@@ -266,14 +310,8 @@ public class Main implements EventListener {
             }
             try {
                 this.maxContextSize = Integer.parseInt(sizeString);
-                try {
-                    this.packetStream.writePacket(
-                            new Packet(PacketID.SET_MAX_CONTEXT_SIZE,
-                                    ByteBuffer.allocate(4).putLong(this.maxContextSize).array()));
-                    this.packetStream.flush();
-                } catch (IOException ex) {
-                    ex.printStackTrace(System.err);
-                }
+                writePacket(new Packet(PacketID.SET_MAX_CONTEXT_SIZE,
+                        ByteBuffer.allocate(4).putInt(this.maxContextSize).array()));
             } catch (NumberFormatException ex) {
                 Toolkit.getDefaultToolkit().beep();
                 ex.printStackTrace(System.err);
@@ -292,20 +330,44 @@ public class Main implements EventListener {
             }
             try {
                 this.maxTokens = Integer.parseInt(sizeString);
-                try {
-                    this.packetStream.writePacket(
-                            new Packet(PacketID.SET_MAX_TOKENS,
-                                    ByteBuffer.allocate(4).putLong(this.maxTokens).array()));
-                    this.packetStream.flush();
-                } catch (IOException ex) {
-                    ex.printStackTrace(System.err);
+                writePacket(new Packet(PacketID.SET_MAX_TOKENS,
+                        ByteBuffer.allocate(4).putInt(this.maxTokens).array()));
+            } catch (NumberFormatException ex) {
+                Toolkit.getDefaultToolkit().beep();
+                ex.printStackTrace(System.err);
+            }
+        });
+
+        memoryBudgetItem.addActionListener((e) -> {
+            String sizeString = JOptionPane
+                    .showInputDialog(null, "Insira o Limite de Memória do Modelo em MB (0 para ilimitado):", "Limite de Memória", JOptionPane.INFORMATION_MESSAGE);
+            if (sizeString == null) {
+                return;
+            }
+            try {
+                long megabytes = Long.parseLong(sizeString);
+                if (megabytes < 0) {
+                    throw new NumberFormatException("negative memory budget: " + megabytes);
                 }
+                this.memoryBudget = megabytes * 1024 * 1024;
+                synchronized (this.modelLock) {
+                    this.bot.setMemoryBudget(this.memoryBudget);
+                }
+                writePacket(new Packet(PacketID.SET_MEMORY_BUDGET,
+                        ByteBuffer.allocate(8).putLong(this.memoryBudget).array()));
             } catch (NumberFormatException ex) {
                 Toolkit.getDefaultToolkit().beep();
                 ex.printStackTrace(System.err);
             }
         });
 
+        compactItem.addActionListener((e) -> {
+            //serializing the model can take a while
+            CompletableFuture.runAsync(() -> {
+                compactDatabase().thenRun(() -> Toolkit.getDefaultToolkit().beep());
+            });
+        });
+
         editItem.add(tokenItem);
         editItem.add(masterUserItem);
         editItem.add(textChannelItem);
@@ -313,6 +375,9 @@ public class Main implements EventListener {
         editItem.add(trainBot);
         editItem.add(maxContextSizeItem);
         editItem.add(maxTokensItem);
+        editItem.add(memoryBudgetItem);
+        editItem.addSeparator();
+        editItem.add(compactItem);
 
         MenuItem defaultLogItem = new MenuItem("Log Padrão");
         MenuItem errorLogItem = new MenuItem("Log de Erro");
@@ -329,6 +394,13 @@ public class Main implements EventListener {
         logItem.add(errorLogItem);
 
         exitItem.addActionListener((e) -> {
+            stopBot();
+            saveModelSnapshot();
+            try {
+                this.packetWriter.close();
+            } catch (IOException ex) {
+                ex.printStackTrace(System.err);
+            }
             System.exit(0);
         });
 
@@ -374,24 +446,201 @@ public class Main implements EventListener {
         if (this.jda != null) {
             this.jda.shutdown();
             this.jda = null;
+            drainPackets();
             this.startItem.setEnabled(true);
             this.stopItem.setEnabled(false);
         }
     }
 
+    private void setupBot(CienBot b) {
+        b.setPruneListener((statistics) -> {
+            this.modelComplete = false;
+            System.out.println("Modelo podado: \n" + statistics);
+        });
+        try {
+            Path database = this.packetStream.getFile();
+            b.setSpillFile(database.resolveSibling(database.getFileName() + ".spill"));
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+        b.setMemoryBudget(this.memoryBudget);
+    }
+
+    private CienBot loadModelSnapshot() {
+        if (this.modelSnapshot == null) {
+            return null;
+        }
+        try {
+            CienBot b = ModelSnapshot.deserialize(this.modelSnapshot);
+            if (b.getMaxContextSize() != this.maxContextSize) {
+                if (!this.messagesCompacted) {
+                    //every message is still in the database, the model is retrained with the new size
+                    return null;
+                }
+                System.err.println("O banco de dados foi compactado, o tamanho de contexto "
+                        + b.getMaxContextSize() + " do modelo foi mantido no lugar de " + this.maxContextSize);
+                this.maxContextSize = b.getMaxContextSize();
+                writePacket(new Packet(PacketID.SET_MAX_CONTEXT_SIZE,
+                        ByteBuffer.allocate(4).putInt(this.maxContextSize).array()));
+            }
+            this.modelComplete = this.modelSnapshotComplete;
+            setupBot(b);
+            List<String> newMessages = this.messages.subList(this.modelSnapshotMessages, this.messages.size());
+            b.teach(newMessages);
+            this.messagesSinceSnapshot.set(newMessages.size());
+            return b;
+        } catch (UncheckedIOException ex) {
+            ex.printStackTrace(System.err);
+            return null;
+        } finally {
+            this.modelSnapshot = null;
+        }
+    }
+
+    private void saveModelSnapshot() {
+        if (this.bot == null) {
+            return;
+        }
+        synchronized (this.modelLock) {
+            if (this.messagesSinceSnapshot.get() == 0 || !isModelReplayable()) {
+                //the snapshot could never be compacted, it would only grow the file
+                return;
+            }
+            this.messagesSinceSnapshot.set(0);
+            //off the writer thread, compacting queues on it
+            writePacket(newModelSnapshot(false))
+                    .thenRunAsync(() -> {
+                        //every snapshot supersedes the previous one, compact once they double the file
+                        try {
+                            if (this.packetStream.getSize() > this.compactedDatabaseSize * 2) {
+                                compactDatabase();
+                            }
+                        } catch (IOException ex) {
+                            ex.printStackTrace(System.err);
+                        }
+                    });
+        }
+    }
+
+    //true if the model is the full replay of the database with the configured context size,
+    //must hold the model lock
+    private boolean isModelReplayable() {
+        return this.modelComplete && this.bot.getMaxContextSize() == this.maxContextSize;
+    }
+
+    //must hold the model lock
+    private Packet newModelSnapshot(boolean compacted) {
+        Packet p = new Packet(PacketID.SET_MODEL_SNAPSHOT, ModelSnapshot.serialize(this.bot));
+        p.getMetadata().put(SNAPSHOT_COMPLETE, Boolean.toString(this.modelComplete));
+        p.getMetadata().put(SNAPSHOT_COMPACTED, Boolean.toString(compacted));
+        return p;
+    }
+
+    private CompletableFuture<Void> writePacket(Packet p) {
+        return this.packetWriter.write(p).whenComplete((v, ex) -> {
+            if (ex != null) {
+                ex.printStackTrace(System.err);
+            }
+        });
+    }
+
+    //waits until every packet queued so far is on disk
+    private void drainPackets() {
+        try {
+            this.packetWriter.sync().get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+
+    private List<Packet> getLivePackets() {
+        List<Packet> packets = new ArrayList<>();
+        packets.add(new Packet(PacketID.SET_BOT_TOKEN, this.botToken));
+        packets.add(new Packet(PacketID.SET_MAX_CONTEXT_SIZE,
+                ByteBuffer.allocate(4).putInt(this.maxContextSize).array()));
+        packets.add(new Packet(PacketID.SET_MAX_TOKENS,
+                ByteBuffer.allocate(4).putInt(this.maxTokens).array()));
+        packets.add(new Packet(PacketID.SET_MASTER_USER,
+                ByteBuffer.allocate(8).putLong(this.masterUser).array()));
+        packets.add(new Packet(PacketID.SET_TEXT_CHANNEL,
+                ByteBuffer.allocate(8).putLong(this.textChannel).array()));
+        packets.add(new Packet(PacketID.SET_START_ON_OPEN,
+                new byte[]{(byte) (this.startOnOpen ? 1 : 0)}));
+        packets.add(new Packet(PacketID.SET_MEMORY_BUDGET,
+                ByteBuffer.allocate(8).putLong(this.memoryBudget).array()));
+        //the snapshot replaces every message taught so far
+        packets.add(newModelSnapshot(true));
+        return packets;
+    }
+
+    //the snapshot covers exactly the packets queued before the compaction, which the writer thread
+    //writes before replacing the file, packets queued after it are written to the new file
+    //must not run on the writer thread
+    private CompletableFuture<Void> compactDatabase() {
+        if (this.bot == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (this.modelLock) {
+            if (this.bot.getMaxContextSize() != this.maxContextSize) {
+                //the snapshot would be discarded on the next start and the messages are needed to retrain
+                System.err.println("Compactação ignorada, reinicie para aplicar o novo tamanho de contexto.");
+                return CompletableFuture.completedFuture(null);
+            }
+            if (!this.modelComplete) {
+                //a pruned model or one retrained without a compacted snapshot would replace messages it lost
+                System.err.println("Compactação ignorada, o modelo em memória não contém todas as mensagens.");
+                return CompletableFuture.completedFuture(null);
+            }
+            List<Packet> packets = getLivePackets();
+            this.messagesSinceSnapshot.set(0);
+            return this.packetWriter.execute((stream) -> {
+                long oldSize = stream.getSize();
+                stream.compact(packets);
+                this.messagesCompacted = true;
+                this.compactedDatabaseSize = stream.getSize();
+                System.out.println("Banco de dados compactado: "
+                        + oldSize + " -> " + this.compactedDatabaseSize + " bytes");
+            }).whenComplete((v, ex) -> {
+                if (ex != null) {
+                    ex.printStackTrace(System.err);
+                }
+            });
+        }
+    }
+
     public void start() {
         this.defaultLog.getPrintStream().flush();
         this.errorLog.getPrintStream().flush();
         System.setOut(this.defaultLog.getPrintStream());
         System.setErr(this.errorLog.getPrintStream());
 
-        CienBot b = new CienBot(this.maxContextSize);
-        for (String msg : this.messages) {
-            b.teach(msg);
+        if (this.packetStream.getTruncatedBytes() != 0) {
+            System.out.println("Pacote incompleto removido do fim do banco de dados: "
+                    + this.packetStream.getTruncatedBytes() + " bytes");
+        }
+        this.packetStream.setSyncInterval(DATABASE_SYNC_INTERVAL);
+        this.packetWriter = new PacketWriter(this.packetStream);
+
+        CienBot b = loadModelSnapshot();
+        if (b == null) {
+            //the messages before a compaction are only in its snapshot
+            this.modelComplete = !this.messagesCompacted;
+            b = new CienBot(this.maxContextSize);
+            setupBot(b);
+            b.teach(this.messages);
+            this.messagesSinceSnapshot.set(this.messages.size());
         }
         this.messages.clear();
         this.bot = b;
 
+        try {
+            this.compactedDatabaseSize = this.packetStream.getSize();
+        } catch (IOException ex) {
+            ex.printStackTrace(System.err);
+        }
+
         setupTrayIcon();
 
         this.startItem.setEnabled(true);
@@ -413,26 +662,28 @@ public class Main implements EventListener {
             String botMention = this.jda.getSelfUser().getAsMention();
             String rawMessage = m.getMessage().getContentRaw();
             if (rawMessage.startsWith(botMention)) {
-                String completedMessage = this.bot.generate(
+                TokenStream stream = this.bot.stream(
                         rawMessage.substring(botMention.length()),
                         this.maxTokens);
+                stream.setMaxCharacters(MESSAGE_LIMIT);
+                String completedMessage = stream.join();
                 if (completedMessage.isEmpty()) {
                     return;
                 }
                 channel.sendMessage(completedMessage).setAllowedMentions(List.of()).complete();
             } else {
                 if (m.getAuthor().getIdLong() == this.masterUser) {
-                    this.bot.teach(rawMessage);
-                    try {
-                        this.packetStream.writePacket(new Packet(PacketID.ADD_MESSAGE, rawMessage));
-                        this.packetStream.flush();
-                    } catch (IOException ex) {
-                        ex.printStackTrace(System.err);
+                    synchronized (this.modelLock) {
+                        this.bot.teach(rawMessage);
+                        writePacket(new Packet(PacketID.ADD_MESSAGE, rawMessage));
+                        this.messagesSinceSnapshot.incrementAndGet();
                     }
                     System.out.println("Aprendi: \n" + rawMessage);
                 }
                 if (this.random.nextInt(100) == 0) {
-                    String msg = this.bot.generate(this.maxTokens);
+                    TokenStream stream = this.bot.stream(this.maxTokens);
+                    stream.setMaxCharacters(MESSAGE_LIMIT);
+                    String msg = stream.join();
                     if (msg.isEmpty()) {
                         return;
                     }
@@ -0,0 +1,87 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.random.RandomGenerator;
+
+/**
+ *
+ * @author Cien
+ */
+public class ApproximateCounting {
+
+    public static final int DEFAULT_HEAVY_HITTERS = 4;
+    public static final int DEFAULT_SKETCH_WIDTH = 1 << 20;
+    public static final int DEFAULT_SKETCH_DEPTH = 4;
+
+    private final int exactContextSize;
+    private final int heavyHitters;
+    private final CountMinSketch sketch;
+
+    //contexts longer than the exact context size are not Context objects, they only exist as
+    //the fingerprint of their tokens in the sketch keys and in the heavy hitter table
+    private final HeavyHitterTable heavyHitterTable;
+
+    //first level contexts are always exact
+    public ApproximateCounting(int exactContextSize, int heavyHitters, int sketchWidth, int sketchDepth) {
+        if (exactContextSize <= 0) {
+            throw new IllegalArgumentException("exact context size must be larger than zero");
+        }
+        if (heavyHitters <= 0) {
+            throw new IllegalArgumentException("heavy hitters must be larger than zero");
+        }
+        this.exactContextSize = exactContextSize;
+        this.heavyHitters = heavyHitters;
+        this.sketch = new CountMinSketch(sketchWidth, sketchDepth);
+        this.heavyHitterTable = new HeavyHitterTable(heavyHitters, this.sketch);
+    }
+
+    public ApproximateCounting(int exactContextSize) {
+        this(exactContextSize, DEFAULT_HEAVY_HITTERS, DEFAULT_SKETCH_WIDTH, DEFAULT_SKETCH_DEPTH);
+    }
+
+    public int getExactContextSize() {
+        return exactContextSize;
+    }
+
+    public int getHeavyHitters() {
+        return heavyHitters;
+    }
+
+    public CountMinSketch getSketch() {
+        return sketch;
+    }
+
+    //number of contexts longer than the exact context size
+    public long getContextCount() {
+        return this.heavyHitterTable.size();
+    }
+
+    //the sketch and the heavy hitter table, not part of the memory budget of the bot as it can't be pruned
+    public long getMemoryUsage() {
+        return this.sketch.getMemoryUsage() + this.heavyHitterTable.getMemoryUsage();
+    }
+
+    //returns true if the context is new
+    boolean add(long fingerprint, int token, int amount) {
+        return this.heavyHitterTable.offer(fingerprint, token, this.sketch.add(HeavyHitterTable.key(fingerprint, token), amount));
+    }
+
+    boolean contains(long fingerprint) {
+        return this.heavyHitterTable.contains(fingerprint);
+    }
+
+    public int getCount(long fingerprint, int token) {
+        if (!contains(fingerprint)) {
+            return 0;
+        }
+        return this.sketch.estimate(HeavyHitterTable.key(fingerprint, token));
+    }
+
+    public int[] getNextTokens(long fingerprint) {
+        return this.heavyHitterTable.getNextTokens(fingerprint);
+    }
+
+    int sample(long fingerprint, RandomGenerator random) {
+        return this.heavyHitterTable.sample(fingerprint, random);
+    }
+
+}
@@ -1,220 +1,638 @@
 package cientistavuador.cienbot.ai;
 
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.random.RandomGenerator;
 
 /**
  *
  * @author Cien
  */
-public class CienBot {
+public class CienBot extends LanguageModel {
 
-    private final Random random = new Random();
+    public static final int TRAINING_SLICE_SIZE = 2048;
+
+    //measured on the retained heap: a context is the object plus its context table slot,
+    //a successor is its token and count in the arrays including the unused capacity
+    public static final long CONTEXT_ESTIMATED_SIZE = 104;
+    public static final long SUCCESSOR_ESTIMATED_SIZE = 12;
+    public static final double PRUNE_TARGET = 0.75;
 
     private final int maxContextSize;
 
-    private final Map<Token, Token> tokenMap = new ConcurrentHashMap<>();
-    private final Map<Context, Context> contextMap = new ConcurrentHashMap<>();
+    private final Vocabulary vocabulary = new Vocabulary();
+    private final StartDistribution startDistribution = new StartDistribution();
+    private final ApproximateCounting approximateCounting;
+    private final Context root;
 
-    public CienBot(int maxContextSize) {
+    private final LongAdder contextCount = new LongAdder();
+    private final LongAdder extraSuccessors = new LongAdder();
+    private volatile long memoryBudget = 0;
+    private volatile Consumer<PruneStatistics> pruneListener = null;
+    private final ReentrantLock pruneLock = new ReentrantLock();
+
+    private volatile SpillFile spillFile = null;
+    private final LongAdder hotHits = new LongAdder();
+    private final LongAdder hotMisses = new LongAdder();
+
+    private final ThreadLocal<TokenBuffer> tokenBuffers = ThreadLocal.withInitial(TokenBuffer::new);
+
+    public CienBot(int maxContextSize, ApproximateCounting approximateCounting) {
         this.maxContextSize = maxContextSize;
         if (this.maxContextSize <= 0) {
             throw new IllegalArgumentException("max context size must be larger than zero");
         }
+        this.approximateCounting = approximateCounting;
+        this.root = new Context();
     }
 
+    public CienBot(int maxContextSize) {
+        this(maxContextSize, null);
+    }
+
+    @Override
     public int getMaxContextSize() {
         return maxContextSize;
     }
 
-    public Token[] getTokens() {
-        return this.tokenMap.keySet().toArray(Token[]::new);
+    public ApproximateCounting getApproximateCounting() {
+        return approximateCounting;
     }
 
-    public Context[] getContexts() {
-        return this.contextMap.keySet().toArray(Context[]::new);
+    public Vocabulary getVocabulary() {
+        return vocabulary;
+    }
+
+    public StartDistribution getStartDistribution() {
+        return startDistribution;
+    }
+
+    Context getRoot() {
+        return root;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("memory budget must not be negative");
+        }
+        this.memoryBudget = memoryBudget;
+        checkMemoryBudget();
+    }
+
+    public Consumer<PruneStatistics> getPruneListener() {
+        return pruneListener;
+    }
+
+    public void setPruneListener(Consumer<PruneStatistics> pruneListener) {
+        this.pruneListener = pruneListener;
+    }
+
+    SpillFile getSpillFile() {
+        return spillFile;
+    }
+
+    //when set, contexts over the memory budget are spilled to this file instead of pruned
+    //the file is deleted when the spill file is closed or the jvm exits
+    public void setSpillFile(Path file) throws IOException {
+        if (this.approximateCounting != null) {
+            throw new IllegalStateException("spilling is not supported with approximate counting");
+        }
+        this.pruneLock.lock();
+        try {
+            if (this.spillFile != null) {
+                throw new IllegalStateException("spill file already set");
+            }
+            this.spillFile = new SpillFile(file);
+        } finally {
+            this.pruneLock.unlock();
+        }
+        checkMemoryBudget();
+    }
+
+    //loads everything back into memory and deletes the spill file
+    public void closeSpillFile() throws IOException {
+        this.pruneLock.lock();
+        try {
+            SpillFile spill = this.spillFile;
+            if (spill == null) {
+                return;
+            }
+            loadSpilled();
+            this.spillFile = null;
+            spill.close();
+        } finally {
+            this.pruneLock.unlock();
+        }
+    }
+
+    public long getHotHits() {
+        return this.hotHits.sum();
+    }
+
+    public long getHotMisses() {
+        return this.hotMisses.sum();
+    }
+
+    public long getSpilledContexts() {
+        SpillFile spill = this.spillFile;
+        if (spill == null) {
+            return 0;
+        }
+        return spill.getSpilledContexts();
+    }
+
+    public long getSpillFileSize() {
+        SpillFile spill = this.spillFile;
+        if (spill == null) {
+            return 0;
+        }
+        return spill.getSize();
+    }
+
+    public long getContextCount() {
+        return this.contextCount.sum();
     }
 
-    private Token getToken(String text, boolean createNew) {
-        Token t = new Token(text);
-        Token o = this.tokenMap.get(t);
-        if (o != null) {
-            return o;
+    public long getEstimatedMemoryUsage() {
+        return (getContextCount() * (CONTEXT_ESTIMATED_SIZE + SUCCESSOR_ESTIMATED_SIZE))
+                + (Math.max(this.extraSuccessors.sum(), 0) * SUCCESSOR_ESTIMATED_SIZE);
+    }
+
+    public Context[] getContexts() {
+        List<Context> contexts = new ArrayList<>();
+        Deque<Context> toVisit = new ArrayDeque<>();
+        toVisit.push(this.root);
+        while (!toVisit.isEmpty()) {
+            for (Context child : toVisit.pop().getChildren()) {
+                contexts.add(child);
+                toVisit.push(child);
+            }
         }
+        return contexts.toArray(Context[]::new);
+    }
+
+    @Override
+    protected int getToken(CharSequence text, int start, int end, boolean createNew) {
         if (!createNew) {
-            return null;
+            return this.vocabulary.getId(text, start, end);
+        }
+        return this.vocabulary.getOrCreateId(text, start, end);
+    }
+
+    @Override
+    protected void appendTokenText(int token, StringBuilder out) {
+        this.vocabulary.appendText(token, out);
+    }
+
+    //loads a spilled first level context, must hold its lock
+    private void load(Context context) {
+        SpillFile spill = this.spillFile;
+        if (spill == null || !context.isSpilled()) {
+            return;
+        }
+        try {
+            byte[] record = spill.read(context.getToken());
+            context.setSpilled(false);
+            if (record == null) {
+                return;
+            }
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+                in.readInt();
+                ModelSnapshot.readCounts(in, context);
+                ModelSnapshot.readChildren(in, context);
+            }
+            spill.release(context.getToken());
+            long[] loaded = count(context);
+            this.contextCount.add(loaded[0]);
+            this.extraSuccessors.add(loaded[1] - loaded[0]);
+            this.hotMisses.increment();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    //makes sure a first level context is in memory and marks it as used
+    //returns true if it had to be loaded
+    private boolean access(Context context) {
+        SpillFile spill = this.spillFile;
+        if (spill == null) {
+            return false;
         }
-        this.tokenMap.put(t, t);
-        return t;
+        spill.touch(context.getToken());
+        if (!context.isSpilled()) {
+            this.hotHits.increment();
+            return false;
+        }
+        synchronized (context) {
+            load(context);
+        }
+        return true;
     }
 
-    private boolean isSpace(char c) {
-        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    void loadSpilled() {
+        if (this.spillFile == null) {
+            return;
+        }
+        for (Context context : this.root.getChildren()) {
+            synchronized (context) {
+                load(context);
+            }
+        }
     }
 
-    private List<Token> tokenize(String text, boolean createNew) {
-        List<Token> tokens = new ArrayList<>();
+    private void contextualize(Context first, int[] tokens, int i, int nextToken, long[] added) {
+        Context context = first;
+        if (context.incrementNextTokenCount(nextToken)) {
+            added[1]++;
+        }
+        for (int j = 1; j < this.maxContextSize; j++) {
+            int tokenIndex = i - j;
+            if (tokenIndex < 0) {
+                break;
+            }
 
-        StringBuilder b = new StringBuilder();
-        for (int i = 0; i < text.length(); i++) {
-            char c = text.charAt(i);
-            if (isSpace(c)) {
-                String tokenText = b.toString();
-                b.setLength(0);
-                if (!tokenText.isEmpty()) {
-                    tokens.add(getToken(tokenText, createNew));
+            ApproximateCounting counting = this.approximateCounting;
+            if (counting != null && context.size() >= counting.getExactContextSize()) {
+                //the longer contexts go straight into the approximate counting, partial
+                //models share it with the bot so there is nothing to merge for them
+                long fingerprint = context.getFingerprint();
+                for (; j < this.maxContextSize && (i - j) >= 0; j++) {
+                    fingerprint = ContextTable.fingerprint(fingerprint, tokens[i - j]);
+                    counting.add(fingerprint, nextToken, 1);
                 }
-                continue;
+                break;
+            }
+            context = context.getOrCreateChild(tokens[tokenIndex], added);
+            if (context.incrementNextTokenCount(nextToken)) {
+                added[1]++;
+            }
+        }
+    }
+
+    //adds the number of contexts created and successors added to added
+    private void contextualize(Context root, int[] tokens, int length, long[] added) {
+        for (int i = 0; i < length; i++) {
+            int nextToken = Vocabulary.NO_TOKEN;
+            if ((i + 1) < length) {
+                nextToken = tokens[i + 1];
+            }
+
+            Context first = root.getOrCreateChild(tokens[i], added);
+            if (root == this.root && this.spillFile != null) {
+                //first level contexts are the unit of spilling
+                synchronized (first) {
+                    access(first);
+                    contextualize(first, tokens, i, nextToken, added);
+                }
+            } else {
+                contextualize(first, tokens, i, nextToken, added);
             }
-            b.append(c);
         }
-        String tokenText = b.toString();
-        if (!tokenText.isEmpty()) {
-            tokens.add(getToken(tokenText, createNew));
+    }
+
+    //returns the number of contexts created and successors added
+    private long[] mergeInto(PartialModel model) {
+        if (this.spillFile == null) {
+            return model.mergeInto(this.root, this.startDistribution);
         }
-        
-        if (!tokens.isEmpty() && createNew) {
-            tokens.get(0).incrementStartCount();
+        this.startDistribution.addAll(model.getStartDistribution());
+        long[] added = new long[2];
+        for (Context other : model.getRoot().getChildren()) {
+            Context first = this.root.getOrCreateChild(other.getToken(), added);
+            synchronized (first) {
+                access(first);
+                long[] merged = first.merge(other);
+                added[0] += merged[0];
+                added[1] += merged[1];
+            }
         }
+        return added;
+    }
 
-        return tokens;
+    private void added(long[] added) {
+        this.contextCount.add(added[0]);
+        this.extraSuccessors.add(added[1] - added[0]);
     }
 
-    private Context getContext(List<Token> tokens, boolean createNew) {
-        Context c = new Context(tokens.toArray(Token[]::new));
-        Context o = this.contextMap.get(c);
-        if (o != null) {
-            return o;
+    private void learn(Context root, StartDistribution starts, CharSequence message, long[] added) {
+        TokenBuffer tokens = this.tokenBuffers.get();
+        tokens.clear();
+        tokenize(message, true, tokens);
+        if (tokens.length() != 0) {
+            starts.increment(tokens.get(0));
         }
-        if (!createNew) {
-            return null;
+        contextualize(root, tokens.array(), tokens.length(), added);
+    }
+
+    public void teach(CharSequence message) {
+        long[] added = new long[2];
+        learn(this.root, this.startDistribution, message, added);
+        added(added);
+        checkMemoryBudget();
+    }
+
+    private PartialModel train(List<String> messages) {
+        PartialModel model = new PartialModel();
+        long[] added = new long[2];
+        for (String message : messages) {
+            learn(model.getRoot(), model.getStartDistribution(), message, added);
         }
-        this.contextMap.put(c, c);
-        return c;
+        return model;
     }
 
-    private void contextualize(List<Token> tokens) {
-        List<Token> contextTokens = new ArrayList<>();
-        for (int i = 0; i < tokens.size(); i++) {
-            Token nextToken = null;
-            if ((i + 1) < tokens.size()) {
-                nextToken = tokens.get(i + 1);
+    public void teach(List<String> messages) {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int workers = Math.max(pool.getParallelism(), Runtime.getRuntime().availableProcessors());
+        if (workers <= 1 || messages.size() <= TRAINING_SLICE_SIZE) {
+            for (String message : messages) {
+                teach(message);
             }
+            return;
+        }
 
-            for (int j = 0; j < this.maxContextSize; j++) {
-                int tokenIndex = i - j;
-                if (tokenIndex < 0) {
-                    break;
-                }
-                
-                contextTokens.add(0, tokens.get(tokenIndex));
+        int sliceSize = Math.max(TRAINING_SLICE_SIZE, (messages.size() + workers - 1) / workers);
+        List<ForkJoinTask<PartialModel>> slices = new ArrayList<>();
+        for (int start = 0; start < messages.size(); start += sliceSize) {
+            List<String> slice = messages.subList(start, Math.min(start + sliceSize, messages.size()));
+            slices.add(pool.submit(() -> train(slice)));
+        }
+        for (ForkJoinTask<PartialModel> slice : slices) {
+            added(mergeInto(slice.join()));
+            checkMemoryBudget();
+        }
+    }
+
+    void recountContexts() {
+        long[] totals = measure();
+        this.contextCount.reset();
+        this.contextCount.add(totals[0]);
+        this.extraSuccessors.reset();
+        this.extraSuccessors.add(Math.max(totals[1] - totals[0], 0));
+    }
 
-                getContext(contextTokens, true).incrementNextTokenCount(nextToken);
+    //returns the number of contexts and successors
+    private long[] measure() {
+        long contexts = 0;
+        long successors = 0;
+        Deque<Context> toVisit = new ArrayDeque<>();
+        toVisit.push(this.root);
+        while (!toVisit.isEmpty()) {
+            for (Context child : toVisit.pop().getChildren()) {
+                contexts++;
+                successors += child.getNextTokensSize();
+                toVisit.push(child);
             }
-            contextTokens.clear();
         }
+        return new long[]{contexts, successors};
     }
 
-    public void teach(String message) {
-        contextualize(tokenize(message, true));
+    private void checkMemoryBudget() {
+        long budget = this.memoryBudget;
+        if (budget <= 0 || getEstimatedMemoryUsage() <= budget) {
+            return;
+        }
+        if (!this.pruneLock.tryLock()) {
+            return;
+        }
+        try {
+            if (getEstimatedMemoryUsage() <= budget) {
+                return;
+            }
+            if (this.spillFile != null) {
+                spill((long) (budget * PRUNE_TARGET));
+                if (getEstimatedMemoryUsage() <= budget) {
+                    return;
+                }
+            }
+            PruneStatistics statistics = prune((long) (budget * PRUNE_TARGET));
+            Consumer<PruneStatistics> listener = this.pruneListener;
+            if (listener != null) {
+                listener.accept(statistics);
+            }
+        } finally {
+            this.pruneLock.unlock();
+        }
     }
 
-    private Token getRandomStartToken() {
-        Token[] tokens = getTokens();
+    //number of contexts below the context and successors including it
+    private static long[] count(Context context) {
+        long contexts = 0;
+        long successors = context.getNextTokensSize();
+        Deque<Context> toVisit = new ArrayDeque<>();
+        toVisit.push(context);
+        while (!toVisit.isEmpty()) {
+            for (Context child : toVisit.pop().getChildren()) {
+                contexts++;
+                successors += child.getNextTokensSize();
+                toVisit.push(child);
+            }
+        }
+        return new long[]{contexts, successors};
+    }
 
-        int sum = 0;
-        for (Token t : tokens) {
-            sum += t.getStartCount();
+    private static void detach(Context context) {
+        for (Context child : context.getChildren()) {
+            detach(child);
+            context.removeChild(child);
         }
+    }
 
-        if (sum == 0) {
+    //writes the successors and children of a first level context to the spill file
+    //and removes them from memory, must hold its lock
+    //returns the number of contexts and successors removed
+    private long[] spill(SpillFile spill, Context context) throws IOException {
+        if (context.isSpilled() || (context.getChildrenSize() == 0 && context.getNextTokensSize() == 0)) {
             return null;
         }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            ModelSnapshot.writeContext(out, context, null);
+        }
+        long[] removed = count(context);
+        spill.write(context.getToken(), record.toByteArray(), (int) removed[0]);
+        context.setSpilled(true);
+        detach(context);
+        context.clearNextTokens();
+        return removed;
+    }
 
-        int randomValue = this.random.nextInt(sum);
+    //spills the least recently used first level contexts until the estimate is below the target
+    private void spill(long targetBytes) {
+        SpillFile spill = this.spillFile;
+        Context[] units = this.root.getChildren();
+        long[] lastAccess = new long[units.length];
+        Integer[] order = new Integer[units.length];
+        for (int i = 0; i < units.length; i++) {
+            lastAccess[i] = spill.getLastAccess(units[i].getToken());
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(lastAccess[a], lastAccess[b]));
 
-        int offset = 0;
-        for (Token t : tokens) {
-            int count = t.getStartCount();
-            if (randomValue >= offset && randomValue < (offset + count)) {
-                return t;
+        try {
+            for (int index : order) {
+                if (getEstimatedMemoryUsage() <= targetBytes) {
+                    break;
+                }
+                Context unit = units[index];
+                long[] removed;
+                synchronized (unit) {
+                    removed = spill(spill, unit);
+                }
+                if (removed == null) {
+                    continue;
+                }
+                this.contextCount.add(-removed[0]);
+                this.extraSuccessors.add(-(removed[1] - removed[0]));
             }
-            offset += count;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
         }
-
-        return null;
     }
 
-    private Token getNextToken(List<Token> currentMessage) {
-        for (int len = this.maxContextSize; len > 0; len--) {
-            int srcPos = currentMessage.size() - len;
-            if (srcPos < 0) {
+    //evicts leaf contexts at the given depth whose count is at most threshold
+    //and successors of the remaining contexts with a count at most threshold
+    //evicted[0] is the number of contexts, evicted[1] the number of successors
+    private void prune(Context context, int depth, int threshold, long[] evicted) {
+        for (Context child : context.getChildren()) {
+            if (child.isSpilled()) {
                 continue;
             }
-            Context context = getContext(currentMessage.subList(srcPos, srcPos + len), false);
-            if (context != null) {
-                return context.getRandomNextToken();
+            if (child.size() < depth) {
+                prune(child, depth, threshold, evicted);
+                continue;
             }
-        }
 
-        return null;
-    }
+            int total = child.getNextTokenTotal();
+            if (child.getChildrenSize() == 0 && total <= threshold) {
+                if (context.removeChild(child)) {
+                    evicted[0]++;
+                    evicted[1] += child.getNextTokensSize();
+                }
+                continue;
+            }
 
-    private List<Token> generateTokens(List<Token> append, int maxSize) {
-        List<Token> tokenList = new ArrayList<>();
-        if (append != null && !append.isEmpty()) {
-            tokenList.addAll(append);
-        } else {
-            Token startToken = getRandomStartToken();
-            if (startToken == null) {
-                return new ArrayList<>();
+            for (int next : child.getNextTokens()) {
+                int count = child.getNextTokenCount(next);
+                if (count > threshold || (total - count) <= 0) {
+                    continue;
+                }
+                if (child.removeNextToken(next)) {
+                    total -= count;
+                    evicted[1]++;
+                }
             }
-            tokenList.add(startToken);
         }
-        
-        for (int i = 1; i < maxSize; i++) {
-            Token next = getNextToken(tokenList);
-            if (next == null) {
-                break;
+    }
+
+    public PruneStatistics prune(long targetBytes) {
+        this.pruneLock.lock();
+        try {
+            long startTime = System.nanoTime();
+
+            long[] totals = measure();
+            long bytesBefore = (totals[0] * CONTEXT_ESTIMATED_SIZE) + (totals[1] * SUCCESSOR_ESTIMATED_SIZE);
+
+            long[] evicted = new long[2];
+            long bytes = bytesBefore;
+            int threshold = 1;
+            while (bytes > targetBytes) {
+                for (int depth = this.maxContextSize; depth > 0 && bytes > targetBytes; depth--) {
+                    prune(this.root, depth, threshold, evicted);
+                    bytes = ((totals[0] - evicted[0]) * CONTEXT_ESTIMATED_SIZE)
+                            + ((totals[1] - evicted[1]) * SUCCESSOR_ESTIMATED_SIZE);
+                }
+                if (threshold >= (Integer.MAX_VALUE / 2)) {
+                    break;
+                }
+                if (bytes > targetBytes) {
+                    threshold *= 2;
+                }
             }
-            tokenList.add(next);
+
+            this.contextCount.add(-evicted[0]);
+            this.extraSuccessors.reset();
+            this.extraSuccessors.add(Math.max((totals[1] - evicted[1]) - (totals[0] - evicted[0]), 0));
+
+            return new PruneStatistics(
+                    this.memoryBudget,
+                    bytesBefore, bytes,
+                    evicted[0], evicted[1],
+                    threshold, System.nanoTime() - startTime);
+        } finally {
+            this.pruneLock.unlock();
         }
+    }
 
-        return tokenList;
+    @Override
+    protected int getRandomStartToken(RandomGenerator random) {
+        return this.startDistribution.sample(random);
     }
 
-    private String compileTokens(List<Token> tokens) {
-        StringBuilder b = new StringBuilder();
-        for (int i = 0; i < tokens.size(); i++) {
-            b.append(tokens.get(i).getText());
-            if (i != tokens.size() - 1) {
-                b.append(' ');
+    @Override
+    protected int getNextToken(RandomGenerator random, int[] window, int newest, int available) {
+        Context context = this.root;
+        int tokenIndex = newest;
+        boolean loaded = false;
+        int j = 0;
+        for (; j < Math.min(available, this.maxContextSize); j++) {
+            Context child = context.getChild(window[tokenIndex]);
+            if (child == null) {
+                break;
+            }
+            if (j == 0) {
+                loaded = access(child);
             }
+            context = child;
+            tokenIndex = (tokenIndex == 0 ? window.length : tokenIndex) - 1;
+        }
+
+        if (context == this.root) {
+            return Vocabulary.NO_TOKEN;
         }
-        return b.toString();
-    }
 
-    public String generate(String messageToComplete, int maxTokens) {
-        List<Token> completeTokens = null;
-        if (messageToComplete != null && !messageToComplete.isEmpty()) {
-            completeTokens = tokenize(messageToComplete, false);
-            int cutoff = 0;
-            for (int i = completeTokens.size() - 1; i >= 0; i--) {
-                if (completeTokens.get(i) == null) {
-                    cutoff = i + 1;
+        ApproximateCounting counting = this.approximateCounting;
+        if (counting != null && context.size() == counting.getExactContextSize()) {
+            long fingerprint = context.getFingerprint();
+            long longest = 0;
+            for (; j < Math.min(available, this.maxContextSize); j++) {
+                fingerprint = ContextTable.fingerprint(fingerprint, window[tokenIndex]);
+                if (!counting.contains(fingerprint)) {
                     break;
                 }
-                cutoff = i;
+                longest = fingerprint;
+                tokenIndex = (tokenIndex == 0 ? window.length : tokenIndex) - 1;
+            }
+            if (longest != 0) {
+                return counting.sample(longest, random);
             }
-            completeTokens = completeTokens.subList(cutoff, completeTokens.size());
         }
-        return compileTokens(generateTokens(completeTokens, maxTokens));
-    }
 
-    public String generate(int maxTokens) {
-        return generate(null, maxTokens);
+        int next = context.getRandomNextToken(random);
+        if (loaded) {
+            //loading while generating grows the model as much as teaching, the least recently
+            //used contexts are spilled again, skipped if another thread is already doing it
+            checkMemoryBudget();
+        }
+        return next;
     }
+
 }
@@ -1,9 +1,9 @@
 package cientistavuador.cienbot.ai;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.random.RandomGenerator;
 
 /**
  *
@@ -11,103 +11,566 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Context {
 
-    private final Random random = new Random();
-    private final Token[] tokens;
-    private final Map<Token, Integer> nextTokens = new ConcurrentHashMap<>();
-    private int nullTokenCount = 0;
+    private static final VarHandle NULL_TOKEN_COUNT;
+    private static final VarHandle VERSION;
 
-    public Context(Token[] tokens) {
-        this.tokens = tokens.clone();
-        for (int i = 0; i < this.tokens.length; i++) {
-            if (this.tokens[i] == null) {
-                throw new NullPointerException("token is null at index " + i);
+    //successors kept in linear arrays before switching to a hash table, power of two
+    public static final int SMALL_SUCCESSORS = 8;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NULL_TOKEN_COUNT = lookup.findVarHandle(Context.class, "nullTokenCount", int.class);
+            VERSION = lookup.findVarHandle(Context.class, "version", int.class);
+        } catch (NoSuchFieldException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private static class Sampler {
+
+        final int version;
+        final int[] tokens;
+        final int[] cumulativeCounts;
+        final int total;
+
+        Sampler(int version, int[] tokens, int[] cumulativeCounts, int total) {
+            this.version = version;
+            this.tokens = tokens;
+            this.cumulativeCounts = cumulativeCounts;
+            this.total = total;
+        }
+
+        int sample(int randomValue) {
+            int low = 0;
+            int high = this.cumulativeCounts.length - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (this.cumulativeCounts[middle] > randomValue) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return this.tokens[low];
+        }
+    }
+
+    private final Context parent;
+    private final int token;
+    private final int size;
+    private final long fingerprint;
+    private final ContextTable table;
+
+    //children are linked through nextSibling and only modified with the lock of their table shard
+    private volatile Context firstChild = null;
+    private volatile Context nextSibling = null;
+    private volatile int childrenSize = 0;
+    private volatile boolean removed = false;
+    //children and successors are in the spill file
+    private volatile boolean spilled = false;
+    private int removedChildren = 0;
+
+    //successors are stored inline while there is only one, then in small
+    //parallel arrays and then in an open-addressing table (token + 1 keys)
+    //guarded by this
+    private int singleToken = Vocabulary.NO_TOKEN;
+    private int singleCount = 0;
+    private int[] successorTokens = null;
+    //byte[], short[] or int[], widened when a count overflows, see Counts
+    private Object successorCounts = null;
+    private int successorsSize = 0;
+
+    private volatile int nullTokenCount = 0;
+    private volatile int version = 0;
+    private volatile Sampler sampler = null;
+
+    Context(Context parent, int token) {
+        this.parent = parent;
+        this.token = token;
+        if (parent == null) {
+            this.size = 0;
+            this.fingerprint = ContextTable.ROOT_FINGERPRINT;
+            this.table = new ContextTable();
+        } else {
+            if (token < 0) {
+                throw new IllegalArgumentException("invalid token " + token);
             }
+            this.size = parent.size + 1;
+            this.fingerprint = ContextTable.fingerprint(parent.fingerprint, token);
+            this.table = parent.table;
         }
     }
 
-    public Token[] getTokens() {
-        return tokens.clone();
+    Context() {
+        this(null, Vocabulary.NO_TOKEN);
     }
 
-    public Token[] getNextTokens() {
-        return this.nextTokens.keySet().toArray(Token[]::new);
+    private Context newChild(int token) {
+        return new Context(this, token);
     }
 
-    public int getNextTokenCount(Token t) {
-        if (t == null) {
-            return this.nullTokenCount;
+    public Context getParent() {
+        return parent;
+    }
+
+    public int getToken() {
+        return token;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getFingerprint() {
+        return fingerprint;
+    }
+
+    public int[] getTokens() {
+        int[] tokens = new int[this.size];
+        Context c = this;
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = c.token;
+            c = c.parent;
         }
+        return tokens;
+    }
 
-        Integer count = this.nextTokens.get(t);
-        if (count == null) {
-            count = 0;
+    public Context getChild(int token) {
+        if (this.firstChild == null) {
+            return null;
         }
-        return count;
+        return this.table.get(this, token, ContextTable.fingerprint(this.fingerprint, token));
     }
 
-    public void incrementNextTokenCount(Token t) {
-        if (t == null) {
-            this.nullTokenCount++;
-            return;
+    public Context getOrCreateChild(int token) {
+        long childFingerprint = ContextTable.fingerprint(this.fingerprint, token);
+        Context child = this.table.get(this, token, childFingerprint);
+        if (child != null) {
+            return child;
         }
+        return this.table.getOrCreate(this, token, childFingerprint, this::newChild);
+    }
 
-        Integer count = this.nextTokens.get(t);
-        if (count == null) {
-            count = 0;
+    //increments added[0] only if the child was created by this call
+    Context getOrCreateChild(int token, long[] added) {
+        long childFingerprint = ContextTable.fingerprint(this.fingerprint, token);
+        Context child = this.table.get(this, token, childFingerprint);
+        if (child != null) {
+            return child;
         }
-        this.nextTokens.put(t, count + 1);
+        return this.table.getOrCreate(this, token, childFingerprint, (t) -> {
+            added[0]++;
+            return newChild(t);
+        });
     }
-    
-    public Token getRandomNextToken() {
-        int sum = 0;
 
-        sum += this.nullTokenCount;
-        for (Integer c : this.nextTokens.values()) {
-            sum += c;
+    public boolean removeChild(Context child) {
+        if (child.parent != this) {
+            return false;
         }
+        return this.table.remove(child);
+    }
 
-        if (sum <= 0) {
-            return null;
+    //called by the table with the lock of the shard held
+    void linkChild(Context child) {
+        child.nextSibling = this.firstChild;
+        this.firstChild = child;
+        this.childrenSize++;
+    }
+
+    //called by the table with the lock of the shard held
+    void unlinkChild(Context child) {
+        child.removed = true;
+        this.childrenSize--;
+        this.removedChildren++;
+        if (this.removedChildren <= this.childrenSize) {
+            return;
         }
+        //skip removed children, concurrent readers still reach every live child
+        Context last = null;
+        for (Context c = this.firstChild; c != null; c = c.nextSibling) {
+            if (c.removed) {
+                continue;
+            }
+            if (last == null) {
+                this.firstChild = c;
+            } else {
+                last.nextSibling = c;
+            }
+            last = c;
+        }
+        if (last == null) {
+            this.firstChild = null;
+        } else {
+            last.nextSibling = null;
+        }
+        this.removedChildren = 0;
+    }
 
-        int randomValue = this.random.nextInt(sum);
-        
-        int offset = 0;
-        if (randomValue >= offset && randomValue < (offset + this.nullTokenCount)) {
-            return null;
+    boolean isSpilled() {
+        return spilled;
+    }
+
+    void setSpilled(boolean spilled) {
+        this.spilled = spilled;
+    }
+
+    public int getChildrenSize() {
+        return this.childrenSize;
+    }
+
+    public Context[] getChildren() {
+        Context[] children = new Context[this.childrenSize];
+        int length = 0;
+        for (Context c = this.firstChild; c != null; c = c.nextSibling) {
+            if (c.removed) {
+                continue;
+            }
+            if (length == children.length) {
+                children = Arrays.copyOf(children, length + 1);
+            }
+            children[length++] = c;
         }
-        offset += this.nullTokenCount;
-        for (Map.Entry<Token, Integer> e : this.nextTokens.entrySet()) {
-            int count = e.getValue();
-            if (randomValue >= offset && randomValue < (offset + count)) {
-                return e.getKey();
+        if (length != children.length) {
+            children = Arrays.copyOf(children, length);
+        }
+        return children;
+    }
+
+    protected void invalidateSampler() {
+        VERSION.getAndAdd(this, 1);
+    }
+
+    private static int hash(int t) {
+        int hash = t * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean isHashed() {
+        return this.successorTokens != null && this.successorTokens.length > SMALL_SUCCESSORS;
+    }
+
+    //index of the successor in the arrays or -1, must hold the lock
+    private int indexOf(int t) {
+        int[] tokens = this.successorTokens;
+        if (!isHashed()) {
+            for (int i = 0; i < this.successorsSize; i++) {
+                if (tokens[i] == t) {
+                    return i;
+                }
             }
-            offset += count;
+            return -1;
         }
+        int mask = tokens.length - 1;
+        int slot = hash(t) & mask;
+        int key;
+        while ((key = tokens[slot]) != 0) {
+            if (key == (t + 1)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
 
-        return null;
+    //slot where the successor was inserted
+    private static int put(int[] tokens, int t) {
+        int mask = tokens.length - 1;
+        int slot = hash(t) & mask;
+        while (tokens[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        tokens[slot] = t + 1;
+        return slot;
     }
 
-    @Override
-    public int hashCode() {
-        int hash = 5;
-        hash = 59 * hash + Arrays.deepHashCode(this.tokens);
-        return hash;
+    private void rehash(int capacity) {
+        int[] tokens = new int[capacity];
+        Object counts = Counts.allocate(capacity);
+        if (isHashed()) {
+            for (int i = 0; i < this.successorTokens.length; i++) {
+                if (this.successorTokens[i] != 0) {
+                    int slot = put(tokens, this.successorTokens[i] - 1);
+                    counts = Counts.set(counts, slot, Counts.get(this.successorCounts, i));
+                }
+            }
+        } else {
+            for (int i = 0; i < this.successorsSize; i++) {
+                int slot = put(tokens, this.successorTokens[i]);
+                counts = Counts.set(counts, slot, Counts.get(this.successorCounts, i));
+            }
+        }
+        this.successorTokens = tokens;
+        this.successorCounts = counts;
     }
 
-    @Override
-    public boolean equals(Object obj) {
-        if (this == obj) {
-            return true;
+    private void setCount(int index, int count) {
+        this.successorCounts = Counts.set(this.successorCounts, index, count);
+    }
+
+    //returns true if t was not a successor yet, must hold the lock
+    private boolean addSuccessor(int t, int amount) {
+        if (this.successorTokens == null) {
+            if (this.successorsSize == 0 || this.singleToken == t) {
+                boolean added = (this.successorsSize == 0);
+                this.singleToken = t;
+                this.singleCount += amount;
+                this.successorsSize = 1;
+                return added;
+            }
+            //promote the inline successor to the small arrays
+            this.successorTokens = new int[2];
+            this.successorCounts = Counts.allocate(2);
+            this.successorTokens[0] = this.singleToken;
+            setCount(0, this.singleCount);
+            this.singleToken = Vocabulary.NO_TOKEN;
+            this.singleCount = 0;
         }
-        if (obj == null) {
+
+        int index = indexOf(t);
+        if (index >= 0) {
+            setCount(index, Counts.get(this.successorCounts, index) + amount);
             return false;
         }
-        if (getClass() != obj.getClass()) {
+
+        if (!isHashed()) {
+            if (this.successorsSize < this.successorTokens.length) {
+                this.successorTokens[this.successorsSize] = t;
+                setCount(this.successorsSize, amount);
+                this.successorsSize++;
+                return true;
+            }
+            if (this.successorTokens.length < SMALL_SUCCESSORS) {
+                int newLength = Math.min(this.successorTokens.length * 2, SMALL_SUCCESSORS);
+                this.successorTokens = Arrays.copyOf(this.successorTokens, newLength);
+                this.successorCounts = Counts.copyOf(this.successorCounts, newLength);
+                this.successorTokens[this.successorsSize] = t;
+                setCount(this.successorsSize, amount);
+                this.successorsSize++;
+                return true;
+            }
+            //promote the small arrays to a hash table
+            rehash(SMALL_SUCCESSORS * 2);
+        } else if ((this.successorsSize + 1) * 4 > this.successorTokens.length * 3) {
+            rehash(this.successorTokens.length * 2);
+        }
+        setCount(put(this.successorTokens, t), amount);
+        this.successorsSize++;
+        return true;
+    }
+
+    //must hold the lock
+    private boolean removeSuccessor(int t) {
+        if (this.successorTokens == null) {
+            if (this.successorsSize == 0 || this.singleToken != t) {
+                return false;
+            }
+            this.singleToken = Vocabulary.NO_TOKEN;
+            this.singleCount = 0;
+            this.successorsSize = 0;
+            return true;
+        }
+        int index = indexOf(t);
+        if (index < 0) {
             return false;
         }
-        final Context other = (Context) obj;
-        return Arrays.deepEquals(this.tokens, other.tokens);
+        int[] tokens = this.successorTokens;
+        this.successorsSize--;
+        if (!isHashed()) {
+            tokens[index] = tokens[this.successorsSize];
+            setCount(index, Counts.get(this.successorCounts, this.successorsSize));
+            return true;
+        }
+        //backward shift deletion, keeps probe sequences without tombstones
+        int mask = tokens.length - 1;
+        int hole = index;
+        int slot = index;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (tokens[slot] == 0) {
+                break;
+            }
+            int home = hash(tokens[slot] - 1) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                tokens[hole] = tokens[slot];
+                setCount(hole, Counts.get(this.successorCounts, slot));
+                hole = slot;
+            }
+        }
+        tokens[hole] = 0;
+        setCount(hole, 0);
+        return true;
+    }
+
+    public synchronized int[] getNextTokens() {
+        int[] result = new int[this.successorsSize];
+        if (this.successorTokens == null) {
+            if (this.successorsSize != 0) {
+                result[0] = this.singleToken;
+            }
+            return result;
+        }
+        if (!isHashed()) {
+            System.arraycopy(this.successorTokens, 0, result, 0, result.length);
+            return result;
+        }
+        int length = 0;
+        for (int key : this.successorTokens) {
+            if (key != 0) {
+                result[length++] = key - 1;
+            }
+        }
+        return result;
+    }
+
+    public synchronized int getNextTokensSize() {
+        return this.successorsSize;
+    }
+
+    public int getNextTokenTotal() {
+        int sum = this.nullTokenCount;
+        synchronized (this) {
+            if (this.successorTokens == null) {
+                return sum + this.singleCount;
+            }
+            Object counts = this.successorCounts;
+            int length = (isHashed() ? Counts.length(counts) : this.successorsSize);
+            for (int i = 0; i < length; i++) {
+                sum += Counts.get(counts, i);
+            }
+        }
+        return sum;
+    }
+
+    public int getNextTokenCount(int t) {
+        if (t == Vocabulary.NO_TOKEN) {
+            return this.nullTokenCount;
+        }
+        synchronized (this) {
+            if (this.successorTokens == null) {
+                if (this.successorsSize != 0 && this.singleToken == t) {
+                    return this.singleCount;
+                }
+                return 0;
+            }
+            int index = indexOf(t);
+            if (index < 0) {
+                return 0;
+            }
+            return Counts.get(this.successorCounts, index);
+        }
+    }
+
+    //returns true if t is a new successor
+    public boolean addNextTokenCount(int t, int amount) {
+        boolean added = false;
+        if (t == Vocabulary.NO_TOKEN) {
+            NULL_TOKEN_COUNT.getAndAdd(this, amount);
+        } else {
+            synchronized (this) {
+                added = addSuccessor(t, amount);
+            }
+        }
+        invalidateSampler();
+        return added;
+    }
+
+    public void clearNextTokens() {
+        synchronized (this) {
+            this.singleToken = Vocabulary.NO_TOKEN;
+            this.singleCount = 0;
+            this.successorTokens = null;
+            this.successorCounts = null;
+            this.successorsSize = 0;
+        }
+        NULL_TOKEN_COUNT.getAndSet(this, 0);
+        invalidateSampler();
+    }
+
+    public boolean incrementNextTokenCount(int t) {
+        return addNextTokenCount(t, 1);
+    }
+
+    public boolean removeNextToken(int t) {
+        synchronized (this) {
+            if (!removeSuccessor(t)) {
+                return false;
+            }
+        }
+        invalidateSampler();
+        return true;
+    }
+
+    //returns the number of contexts created and successors added
+    public long[] merge(Context other) {
+        long[] added = new long[2];
+        merge(other, added);
+        return added;
+    }
+
+    private void merge(Context other, long[] added) {
+        int nullCount = other.getNextTokenCount(Vocabulary.NO_TOKEN);
+        if (nullCount != 0) {
+            addNextTokenCount(Vocabulary.NO_TOKEN, nullCount);
+        }
+        for (int next : other.getNextTokens()) {
+            int count = other.getNextTokenCount(next);
+            if (count != 0 && addNextTokenCount(next, count)) {
+                added[1]++;
+            }
+        }
+        for (Context otherChild : other.getChildren()) {
+            Context child = getOrCreateChild(otherChild.token, added);
+            child.merge(otherChild, added);
+        }
+    }
+
+    private Sampler buildSampler() {
+        int currentVersion = this.version;
+        int[] nextTokensArray = getNextTokens();
+        int[] tokens = new int[nextTokensArray.length + 1];
+        int[] cumulativeCounts = new int[tokens.length];
+        int length = 0;
+        int sum = 0;
+
+        int nullCount = this.nullTokenCount;
+        if (nullCount > 0) {
+            sum += nullCount;
+            tokens[length] = Vocabulary.NO_TOKEN;
+            cumulativeCounts[length] = sum;
+            length++;
+        }
+        for (int next : nextTokensArray) {
+            int count = getNextTokenCount(next);
+            if (count <= 0) {
+                continue;
+            }
+            sum += count;
+            tokens[length] = next;
+            cumulativeCounts[length] = sum;
+            length++;
+        }
+
+        return new Sampler(
+                currentVersion,
+                Arrays.copyOf(tokens, length),
+                Arrays.copyOf(cumulativeCounts, length),
+                sum);
+    }
+
+    public int getRandomNextToken(RandomGenerator random) {
+        Sampler s = this.sampler;
+        if (s == null || s.version != this.version) {
+            s = buildSampler();
+            this.sampler = s;
+        }
+
+        if (s.total <= 0) {
+            return Vocabulary.NO_TOKEN;
+        }
+
+        return s.sample(random.nextInt(s.total));
     }
 
 }
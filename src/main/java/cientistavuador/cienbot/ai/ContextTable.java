@@ -0,0 +1,226 @@
+package cientistavuador.cienbot.ai;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.function.IntFunction;
+
+/**
+ *
+ * @author Cien
+ */
+class ContextTable {
+
+    private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle VALUES = MethodHandles.arrayElementVarHandle(Context[].class);
+    private static final VarHandle FILTER = MethodHandles.arrayElementVarHandle(long[].class);
+
+    //slots of the table per word of the bloom filter, about 8 bits per context
+    public static final int SLOTS_PER_FILTER_WORD = 16;
+
+    public static final long ROOT_FINGERPRINT = 0x243F6A8885A308D3L;
+
+    //fingerprint of the token ids from the root to the child, never zero
+    public static long fingerprint(long parentFingerprint, int token) {
+        long fingerprint = CountMinSketch.mix(parentFingerprint + ((token + 1L) * 0x9E3779B97F4A7C15L));
+        if (fingerprint == 0) {
+            return 1;
+        }
+        return fingerprint;
+    }
+
+    private static class Table {
+
+        //fingerprint, zero is empty
+        final long[] keys;
+        //null for removed contexts
+        final Context[] values;
+        //blocked bloom filter of the fingerprints, a fingerprint sets 3 bits of one word
+        //removed contexts are only cleared when the table is resized
+        final long[] filter;
+
+        Table(int size) {
+            this.keys = new long[size];
+            this.values = new Context[size];
+            this.filter = new long[Math.max(size / SLOTS_PER_FILTER_WORD, 1)];
+        }
+    }
+
+    private static int filterWord(Table t, long fingerprint) {
+        return ((int) (fingerprint >>> 32)) & (t.filter.length - 1);
+    }
+
+    private static long filterBits(long fingerprint) {
+        return (1L << fingerprint) | (1L << (fingerprint >>> 6)) | (1L << (fingerprint >>> 12));
+    }
+
+    private static boolean mightContain(Table t, long fingerprint) {
+        long bits = filterBits(fingerprint);
+        return (((long) FILTER.getAcquire(t.filter, filterWord(t, fingerprint))) & bits) == bits;
+    }
+
+    //must be called before the key is published
+    private static void addToFilter(Table t, long fingerprint) {
+        FILTER.getAndBitwiseOrRelease(t.filter, filterWord(t, fingerprint), filterBits(fingerprint));
+    }
+
+    //new contexts of different shards are inserted and resized concurrently, a shard is picked
+    //by the parent so every child of a parent is linked with the same lock, the children of the
+    //root are all in one shard but there are only as many of them as tokens in the vocabulary
+    public static final int SHARDS = 64;
+
+    private static int shardOf(long parentFingerprint) {
+        return (int) (parentFingerprint >>> 58);
+    }
+
+    private static int slotOf(long fingerprint, int mask) {
+        return ((int) (fingerprint ^ (fingerprint >>> 32))) & mask;
+    }
+
+    private static boolean isChild(Context value, Context parent, int token) {
+        return value != null && value.getParent() == parent && value.getToken() == token;
+    }
+
+    private static class Shard {
+
+        private volatile Table table = new Table(16);
+        private volatile int size = 0;
+        private int usedSlots = 0;
+
+        Context get(Context parent, int token, long fingerprint) {
+            Table t = this.table;
+            if (!mightContain(t, fingerprint)) {
+                return null;
+            }
+            int mask = t.keys.length - 1;
+            int slot = slotOf(fingerprint, mask);
+            long key;
+            while ((key = (long) KEYS.getAcquire(t.keys, slot)) != 0) {
+                if (key == fingerprint) {
+                    Context value = (Context) VALUES.getAcquire(t.values, slot);
+                    if (isChild(value, parent, token)) {
+                        return value;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private void resize() {
+            Table old = this.table;
+            int newSize = old.keys.length;
+            if ((this.size + 1) * 2 > newSize) {
+                newSize *= 2;
+            }
+            Table t = new Table(newSize);
+            int mask = newSize - 1;
+            int used = 0;
+            for (int i = 0; i < old.keys.length; i++) {
+                Context value = old.values[i];
+                if (old.keys[i] == 0 || value == null) {
+                    continue;
+                }
+                int slot = slotOf(old.keys[i], mask);
+                while (t.keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                t.keys[slot] = old.keys[i];
+                t.values[slot] = value;
+                t.filter[filterWord(t, old.keys[i])] |= filterBits(old.keys[i]);
+                used++;
+            }
+            this.usedSlots = used;
+            this.table = t;
+        }
+
+        synchronized Context getOrCreate(Context parent, int token, long fingerprint, IntFunction<Context> factory) {
+            Table t = this.table;
+            int mask = t.keys.length - 1;
+            int slot = slotOf(fingerprint, mask);
+            int free = -1;
+            long key;
+            while ((key = t.keys[slot]) != 0) {
+                if (key == fingerprint) {
+                    Context value = t.values[slot];
+                    if (isChild(value, parent, token)) {
+                        return value;
+                    }
+                    if (value == null && free < 0) {
+                        free = slot;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            Context value = factory.apply(token);
+            if (free >= 0) {
+                addToFilter(t, fingerprint);
+                VALUES.setRelease(t.values, free, value);
+            } else {
+                if ((this.usedSlots + 1) * 4 > t.keys.length * 3) {
+                    resize();
+                    t = this.table;
+                    mask = t.keys.length - 1;
+                    slot = slotOf(fingerprint, mask);
+                    while (t.keys[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                }
+                addToFilter(t, fingerprint);
+                VALUES.setRelease(t.values, slot, value);
+                KEYS.setRelease(t.keys, slot, fingerprint);
+                this.usedSlots++;
+            }
+            this.size++;
+            parent.linkChild(value);
+            return value;
+        }
+
+        synchronized boolean remove(Context child) {
+            Table t = this.table;
+            int mask = t.keys.length - 1;
+            int slot = slotOf(child.getFingerprint(), mask);
+            long key;
+            while ((key = t.keys[slot]) != 0) {
+                if (key == child.getFingerprint() && t.values[slot] == child) {
+                    VALUES.setRelease(t.values, slot, null);
+                    this.size--;
+                    child.getParent().unlinkChild(child);
+                    return true;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return false;
+        }
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+
+    public ContextTable() {
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard s : this.shards) {
+            size += s.size;
+        }
+        return size;
+    }
+
+    public Context get(Context parent, int token, long fingerprint) {
+        return this.shards[shardOf(parent.getFingerprint())].get(parent, token, fingerprint);
+    }
+
+    //the factory is called with the lock of the shard held and the child is linked to its parent
+    public Context getOrCreate(Context parent, int token, long fingerprint, IntFunction<Context> factory) {
+        return this.shards[shardOf(parent.getFingerprint())].getOrCreate(parent, token, fingerprint, factory);
+    }
+
+    public boolean remove(Context child) {
+        return this.shards[shardOf(child.getParent().getFingerprint())].remove(child);
+    }
+
+}
@@ -0,0 +1,66 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ *
+ * @author Cien
+ */
+public class CountMinSketch {
+
+    static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xBF58476D1CE4E5B9L;
+        x = (x ^ (x >>> 27)) * 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    private final int width;
+    private final int depth;
+    private final AtomicIntegerArray counters;
+
+    public CountMinSketch(int width, int depth) {
+        if (width <= 0 || Integer.bitCount(width) != 1) {
+            throw new IllegalArgumentException("width must be a positive power of two");
+        }
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth must be larger than zero");
+        }
+        this.width = width;
+        this.depth = depth;
+        this.counters = new AtomicIntegerArray(width * depth);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public long getMemoryUsage() {
+        return ((long) this.width) * this.depth * Integer.BYTES;
+    }
+
+    private int index(int row, long key) {
+        long hash = mix(key + ((row + 1) * 0x9E3779B97F4A7C15L));
+        return (row * this.width) + (int) (hash & (this.width - 1));
+    }
+
+    public int add(long key, int amount) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < this.depth; row++) {
+            estimate = Math.min(estimate, this.counters.addAndGet(index(row, key), amount));
+        }
+        return estimate;
+    }
+
+    public int estimate(long key) {
+        int estimate = Integer.MAX_VALUE;
+        for (int row = 0; row < this.depth; row++) {
+            estimate = Math.min(estimate, this.counters.get(index(row, key)));
+        }
+        return estimate;
+    }
+
+}
@@ -0,0 +1,87 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author Cien
+ */
+class Counts {
+
+    //counts are stored in a byte[], short[] or int[], the first two are unsigned
+    public static Object allocate(int length) {
+        return new byte[length];
+    }
+
+    public static int get(Object counts, int index) {
+        if (counts instanceof byte[] b) {
+            return b[index] & 0xFF;
+        }
+        if (counts instanceof short[] s) {
+            return s[index] & 0xFFFF;
+        }
+        return ((int[]) counts)[index];
+    }
+
+    private static Object widen(Object counts, int value) {
+        int length = length(counts);
+        if (value >= 0 && value <= 0xFFFF) {
+            short[] s = new short[length];
+            byte[] b = (byte[]) counts;
+            for (int i = 0; i < length; i++) {
+                s[i] = (short) (b[i] & 0xFF);
+            }
+            return s;
+        }
+        int[] ints = new int[length];
+        for (int i = 0; i < length; i++) {
+            ints[i] = get(counts, i);
+        }
+        return ints;
+    }
+
+    //returns the array holding the value, a wider copy if it did not fit
+    public static Object set(Object counts, int index, int value) {
+        if (counts instanceof byte[] b) {
+            if (value >= 0 && value <= 0xFF) {
+                b[index] = (byte) value;
+                return b;
+            }
+            counts = widen(counts, value);
+        }
+        if (counts instanceof short[] s) {
+            if (value >= 0 && value <= 0xFFFF) {
+                s[index] = (short) value;
+                return s;
+            }
+            counts = widen(counts, value);
+        }
+        ((int[]) counts)[index] = value;
+        return counts;
+    }
+
+    public static int length(Object counts) {
+        if (counts instanceof byte[] b) {
+            return b.length;
+        }
+        if (counts instanceof short[] s) {
+            return s.length;
+        }
+        return ((int[]) counts).length;
+    }
+
+    public static Object copyOf(Object counts, int length) {
+        if (counts instanceof byte[] b) {
+            return Arrays.copyOf(b, length);
+        }
+        if (counts instanceof short[] s) {
+            return Arrays.copyOf(s, length);
+        }
+        return Arrays.copyOf((int[]) counts, length);
+    }
+
+    private Counts() {
+
+    }
+
+}
@@ -0,0 +1,244 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.Arrays;
+import java.util.random.RandomGenerator;
+
+/**
+ *
+ * @author Cien
+ */
+class HeavyHitterTable {
+
+    //power of two, picked by the fingerprint of the context
+    public static final int SHARDS = 64;
+
+    //unused heavy hitter in the overflow arrays
+    private static final int EMPTY = Integer.MIN_VALUE;
+
+    private static int shardOf(long fingerprint) {
+        return (int) (fingerprint >>> 58);
+    }
+
+    private static int slotOf(long fingerprint, int mask) {
+        return ((int) (fingerprint ^ (fingerprint >>> 32))) & mask;
+    }
+
+    static long key(long fingerprint, int token) {
+        return fingerprint + (token * 0xC2B2AE3D27D4EB4FL);
+    }
+
+    private static class Shard {
+
+        //open addressing by the fingerprint of the context, zero is empty
+        //most long contexts only ever see one successor, so the first heavy hitter is
+        //inline and the others are in an overflow array that is only created when needed
+        long[] keys = new long[16];
+        int[] tokens = new int[16];
+        int[][] overflow = new int[16][];
+        int size = 0;
+        int overflows = 0;
+
+        int find(long fingerprint) {
+            int mask = this.keys.length - 1;
+            int slot = slotOf(fingerprint, mask);
+            long key;
+            while ((key = this.keys[slot]) != 0) {
+                if (key == fingerprint) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1 - slot;
+        }
+
+        void resize() {
+            long[] oldKeys = this.keys;
+            int[] oldTokens = this.tokens;
+            int[][] oldOverflow = this.overflow;
+            int newSize = oldKeys.length * 2;
+            this.keys = new long[newSize];
+            this.tokens = new int[newSize];
+            this.overflow = new int[newSize][];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] == 0) {
+                    continue;
+                }
+                int slot = -1 - find(oldKeys[i]);
+                this.keys[slot] = oldKeys[i];
+                this.tokens[slot] = oldTokens[i];
+                this.overflow[slot] = oldOverflow[i];
+            }
+        }
+    }
+
+    private final int heavyHitters;
+    private final CountMinSketch sketch;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    //the counts are only in the sketch, the table keeps which successors are the heavy hitters
+    public HeavyHitterTable(int heavyHitters, CountMinSketch sketch) {
+        this.heavyHitters = heavyHitters;
+        this.sketch = sketch;
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard();
+        }
+    }
+
+    //number of contexts
+    public long size() {
+        long size = 0;
+        for (Shard s : this.shards) {
+            synchronized (s) {
+                size += s.size;
+            }
+        }
+        return size;
+    }
+
+    //the slots, with a compressed reference to the overflow array, and the overflow arrays
+    public long getMemoryUsage() {
+        long overflowSize = ((16 + ((this.heavyHitters - 1) * Integer.BYTES)) + 7) & ~7;
+        long bytes = 0;
+        for (Shard s : this.shards) {
+            synchronized (s) {
+                bytes += s.keys.length * ((long) Long.BYTES + Integer.BYTES + Integer.BYTES);
+                bytes += s.overflows * overflowSize;
+            }
+        }
+        return bytes;
+    }
+
+    public boolean contains(long fingerprint) {
+        Shard s = this.shards[shardOf(fingerprint)];
+        synchronized (s) {
+            return s.find(fingerprint) >= 0;
+        }
+    }
+
+    private int estimate(long fingerprint, int token) {
+        return this.sketch.estimate(key(fingerprint, token));
+    }
+
+    //keeps the successor if its estimate is larger than the smallest heavy hitter of the context
+    //returns true if the context is new
+    public boolean offer(long fingerprint, int token, int estimate) {
+        Shard s = this.shards[shardOf(fingerprint)];
+        synchronized (s) {
+            int slot = s.find(fingerprint);
+            if (slot < 0) {
+                if ((s.size + 1) * 4 > s.keys.length * 3) {
+                    s.resize();
+                    slot = s.find(fingerprint);
+                }
+                slot = -1 - slot;
+                s.keys[slot] = fingerprint;
+                s.tokens[slot] = token;
+                s.size++;
+                return true;
+            }
+            if (s.tokens[slot] == token) {
+                return false;
+            }
+            if (this.heavyHitters == 1) {
+                if (estimate > estimate(fingerprint, s.tokens[slot])) {
+                    s.tokens[slot] = token;
+                }
+                return false;
+            }
+
+            int[] overflow = s.overflow[slot];
+            if (overflow == null) {
+                overflow = new int[this.heavyHitters - 1];
+                Arrays.fill(overflow, EMPTY);
+                s.overflow[slot] = overflow;
+                s.overflows++;
+            }
+            int min = -1;
+            int minEstimate = estimate(fingerprint, s.tokens[slot]);
+            for (int i = 0; i < overflow.length; i++) {
+                if (overflow[i] == token) {
+                    return false;
+                }
+                if (overflow[i] == EMPTY) {
+                    overflow[i] = token;
+                    return false;
+                }
+            }
+            for (int i = 0; i < overflow.length; i++) {
+                int e = estimate(fingerprint, overflow[i]);
+                if (e < minEstimate) {
+                    min = i;
+                    minEstimate = e;
+                }
+            }
+            if (estimate > minEstimate) {
+                if (min < 0) {
+                    s.tokens[slot] = token;
+                } else {
+                    overflow[min] = token;
+                }
+            }
+            return false;
+        }
+    }
+
+    public int[] getNextTokens(long fingerprint) {
+        Shard s = this.shards[shardOf(fingerprint)];
+        synchronized (s) {
+            int slot = s.find(fingerprint);
+            if (slot < 0) {
+                return new int[0];
+            }
+            int[] overflow = s.overflow[slot];
+            int[] result = new int[this.heavyHitters];
+            int length = 0;
+            result[length++] = s.tokens[slot];
+            if (overflow != null) {
+                for (int next : overflow) {
+                    if (next != EMPTY) {
+                        result[length++] = next;
+                    }
+                }
+            }
+            return Arrays.copyOf(result, length);
+        }
+    }
+
+    //samples the heavy hitters by their current estimates
+    public int sample(long fingerprint, RandomGenerator random) {
+        Shard s = this.shards[shardOf(fingerprint)];
+        synchronized (s) {
+            int slot = s.find(fingerprint);
+            if (slot < 0) {
+                return Vocabulary.NO_TOKEN;
+            }
+            int first = s.tokens[slot];
+            int[] overflow = s.overflow[slot];
+            if (overflow == null) {
+                return first;
+            }
+
+            //estimates can grow while sampling, the last heavy hitter takes the difference
+            long total = estimate(fingerprint, first);
+            for (int next : overflow) {
+                if (next != EMPTY) {
+                    total += estimate(fingerprint, next);
+                }
+            }
+            long randomValue = random.nextLong(Math.max(total, 1));
+            randomValue -= estimate(fingerprint, first);
+            int last = first;
+            for (int next : overflow) {
+                if (randomValue < 0) {
+                    break;
+                }
+                if (next != EMPTY) {
+                    last = next;
+                    randomValue -= estimate(fingerprint, next);
+                }
+            }
+            return last;
+        }
+    }
+
+}
@@ -0,0 +1,194 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ *
+ * @author Cien
+ */
+public abstract class LanguageModel {
+
+    static class Generator {
+
+        final TokenBuffer prompt = new TokenBuffer();
+        final StringBuilder output = new StringBuilder();
+        int promptIndex = 0;
+        int steps = 0;
+
+        //ring buffer with the last tokens of the message
+        int[] window = new int[0];
+        int newest = 0;
+        int available = 0;
+
+        //null uses ThreadLocalRandom of the calling thread
+        RandomGenerator random = null;
+
+        //seeded generator of this thread and the seed version it was created for
+        SplittableRandom seeded = null;
+        int seedVersion = 0;
+
+        void reset(int maxContextSize) {
+            if (this.window.length != maxContextSize) {
+                this.window = new int[maxContextSize];
+            }
+            this.newest = this.window.length - 1;
+            this.available = 0;
+            this.prompt.clear();
+            this.promptIndex = 0;
+            this.steps = 0;
+            this.output.setLength(0);
+        }
+
+        void push(int token) {
+            this.newest++;
+            if (this.newest == this.window.length) {
+                this.newest = 0;
+            }
+            this.window[this.newest] = token;
+            if (this.available < this.window.length) {
+                this.available++;
+            }
+        }
+    }
+
+    private final ThreadLocal<Generator> generators = ThreadLocal.withInitial(Generator::new);
+
+    private volatile Long seed = null;
+    private volatile int seedVersion = 0;
+
+    public LanguageModel() {
+
+    }
+
+    public abstract int getMaxContextSize();
+
+    public Long getSeed() {
+        return seed;
+    }
+
+    //a fixed seed makes every thread generate the same sequence after it is set
+    //null goes back to ThreadLocalRandom
+    public synchronized void setSeed(Long seed) {
+        this.seed = seed;
+        this.seedVersion++;
+    }
+
+    protected abstract int getToken(CharSequence text, int start, int end, boolean createNew);
+
+    protected abstract void appendTokenText(int token, StringBuilder out);
+
+    protected abstract int getRandomStartToken(RandomGenerator random);
+
+    //window is a ring buffer, newest is the index of the last token
+    //and available is how many tokens before it (inclusive) are valid
+    protected abstract int getNextToken(RandomGenerator random, int[] window, int newest, int available);
+
+    private boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    protected void tokenize(CharSequence text, boolean createNew, TokenBuffer out) {
+        int tokenStart = 0;
+        int textLength = text.length();
+        for (int i = 0; i <= textLength; i++) {
+            if (i == textLength || isSpace(text.charAt(i))) {
+                if (i > tokenStart) {
+                    out.add(getToken(text, tokenStart, i, createNew));
+                }
+                tokenStart = i + 1;
+            }
+        }
+    }
+
+    private SplittableRandom seeded(Generator g) {
+        Long currentSeed = this.seed;
+        if (currentSeed == null) {
+            return null;
+        }
+        int currentVersion = this.seedVersion;
+        if (g.seeded == null || g.seedVersion != currentVersion) {
+            g.seeded = new SplittableRandom(currentSeed);
+            g.seedVersion = currentVersion;
+        }
+        return g.seeded;
+    }
+
+    private void begin(Generator g, CharSequence messageToComplete, RandomGenerator random) {
+        g.reset(getMaxContextSize());
+        g.random = random;
+        if (messageToComplete == null || messageToComplete.length() == 0) {
+            return;
+        }
+        tokenize(messageToComplete, false, g.prompt);
+        //only the part after the last unknown token can be completed
+        for (int i = g.prompt.length() - 1; i >= 0; i--) {
+            if (g.prompt.get(i) == Vocabulary.NO_TOKEN) {
+                g.promptIndex = i + 1;
+                break;
+            }
+            g.promptIndex = i;
+        }
+    }
+
+    //the prompt (or a random start token) counts as the first token
+    int next(Generator g, int maxTokens) {
+        int token;
+        if (g.promptIndex < g.prompt.length()) {
+            token = g.prompt.get(g.promptIndex++);
+            if (g.promptIndex == g.prompt.length()) {
+                g.steps++;
+            }
+        } else {
+            RandomGenerator random = g.random;
+            if (random == null) {
+                random = ThreadLocalRandom.current();
+            }
+            if (g.steps == 0) {
+                token = getRandomStartToken(random);
+            } else if (g.steps < maxTokens) {
+                token = getNextToken(random, g.window, g.newest, g.available);
+            } else {
+                return Vocabulary.NO_TOKEN;
+            }
+            g.steps++;
+        }
+        if (token != Vocabulary.NO_TOKEN) {
+            g.push(token);
+        }
+        return token;
+    }
+
+    public String generate(CharSequence messageToComplete, int maxTokens) {
+        Generator g = this.generators.get();
+        begin(g, messageToComplete, seeded(g));
+
+        StringBuilder output = g.output;
+        int token;
+        while ((token = next(g, maxTokens)) != Vocabulary.NO_TOKEN) {
+            if (output.length() != 0) {
+                output.append(' ');
+            }
+            appendTokenText(token, output);
+        }
+
+        return output.toString();
+    }
+
+    public String generate(int maxTokens) {
+        return generate(null, maxTokens);
+    }
+
+    public TokenStream stream(CharSequence messageToComplete, int maxTokens) {
+        SplittableRandom random = seeded(this.generators.get());
+        Generator g = new Generator();
+        begin(g, messageToComplete, (random == null ? null : random.split()));
+        return new TokenStream(this, g, maxTokens);
+    }
+
+    public TokenStream stream(int maxTokens) {
+        return stream(null, maxTokens);
+    }
+
+}
@@ -0,0 +1,390 @@
+package cientistavuador.cienbot.ai;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.random.RandomGenerator;
+
+/**
+ *
+ * @author Cien
+ */
+public class MappedModel extends LanguageModel {
+
+    public static final int MAGIC_NUMBER = 0x4D4D444C;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 8 * Integer.BYTES;
+
+    private static final int FNV_OFFSET = 0x811C9DC5;
+    private static final int FNV_PRIME = 0x01000193;
+
+    private static int hash(byte[] data, int offset, int length) {
+        int hash = FNV_OFFSET;
+        for (int i = 0; i < length; i++) {
+            hash ^= (data[offset + i] & 0xFF);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    //same as hashing the utf-8 bytes of the text
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = FNV_OFFSET;
+        for (int i = start; i < end;) {
+            int codePoint = Utf8.codePointAt(text, i, end);
+            int length = Utf8.length(codePoint);
+            for (int k = 0; k < length; k++) {
+                hash ^= (Utf8.byteAt(codePoint, length, k) & 0xFF);
+                hash *= FNV_PRIME;
+            }
+            i += Utf8.charCount(codePoint);
+        }
+        return hash;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] array, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            out.writeInt(array[i]);
+        }
+    }
+
+    public static void write(CienBot bot, Path file) throws IOException {
+        Objects.requireNonNull(file, "file is null");
+        if (bot.getApproximateCounting() != null) {
+            throw new IllegalArgumentException("mapped approximate counting models are not supported");
+        }
+
+        //the mapped layout needs the whole trie
+        bot.loadSpilled();
+
+        Vocabulary vocabulary = bot.getVocabulary();
+        StartDistribution starts = bot.getStartDistribution();
+        int tokenCount = vocabulary.size();
+
+        //string table and start distribution
+        byte[][] texts = new byte[tokenCount][];
+        int[] textOffsets = new int[tokenCount + 1];
+        int[] startCumulative = new int[tokenCount];
+        int startSum = 0;
+        for (int i = 0; i < tokenCount; i++) {
+            texts[i] = vocabulary.getTextBytes(i);
+            textOffsets[i + 1] = textOffsets[i] + texts[i].length;
+            startSum += starts.getCount(i);
+            startCumulative[i] = startSum;
+        }
+
+        //text to token lookup
+        int hashTableSize = Integer.highestOneBit(Math.max(tokenCount, 1)) * 4;
+        int[] hashTable = new int[hashTableSize];
+        for (int i = 0; i < tokenCount; i++) {
+            int slot = hash(texts[i], 0, texts[i].length) & (hashTableSize - 1);
+            while (hashTable[slot] != 0) {
+                slot = (slot + 1) & (hashTableSize - 1);
+            }
+            hashTable[slot] = i + 1;
+        }
+
+        //context trie in breadth first order, children sorted by token
+        List<Context> nodes = new ArrayList<>();
+        nodes.add(bot.getRoot());
+        int[] childOffsets = new int[16];
+        for (int i = 0; i < nodes.size(); i++) {
+            Context node = nodes.get(i);
+            Context[] children = node.getChildren();
+            Arrays.sort(children, Comparator.comparingInt(Context::getToken));
+            if (i + 1 >= childOffsets.length) {
+                childOffsets = Arrays.copyOf(childOffsets, childOffsets.length * 2);
+            }
+            childOffsets[i] = nodes.size();
+            nodes.addAll(Arrays.asList(children));
+        }
+        int nodeCount = nodes.size();
+        childOffsets = Arrays.copyOf(childOffsets, nodeCount + 1);
+        childOffsets[nodeCount] = nodeCount;
+
+        int[] nodeTokens = new int[nodeCount];
+        int[] successorOffsets = new int[nodeCount + 1];
+        int[] successorTokens = new int[nodeCount];
+        int[] successorCumulative = new int[nodeCount];
+        int successorIndex = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            Context node = nodes.get(i);
+            nodeTokens[i] = node.getToken();
+            successorOffsets[i] = successorIndex;
+
+            int[] nextTokens = node.getNextTokens();
+            int required = successorIndex + nextTokens.length + 1;
+            if (required > successorTokens.length) {
+                int newLength = Math.max(required, successorTokens.length * 2);
+                successorTokens = Arrays.copyOf(successorTokens, newLength);
+                successorCumulative = Arrays.copyOf(successorCumulative, newLength);
+            }
+
+            int sum = node.getNextTokenCount(Vocabulary.NO_TOKEN);
+            if (sum > 0) {
+                successorTokens[successorIndex] = Vocabulary.NO_TOKEN;
+                successorCumulative[successorIndex] = sum;
+                successorIndex++;
+            }
+            for (int next : nextTokens) {
+                int count = node.getNextTokenCount(next);
+                if (count <= 0) {
+                    continue;
+                }
+                sum += count;
+                successorTokens[successorIndex] = next;
+                successorCumulative[successorIndex] = sum;
+                successorIndex++;
+            }
+        }
+        successorOffsets[nodeCount] = successorIndex;
+
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        //a model that is being mapped is never overwritten in place, it is replaced once complete
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC_NUMBER);
+            out.writeInt(VERSION);
+            out.writeInt(bot.getMaxContextSize());
+            out.writeInt(tokenCount);
+            out.writeInt(textOffsets[tokenCount]);
+            out.writeInt(hashTableSize);
+            out.writeInt(nodeCount);
+            out.writeInt(successorIndex);
+
+            writeInts(out, textOffsets, tokenCount + 1);
+            writeInts(out, startCumulative, tokenCount);
+            writeInts(out, hashTable, hashTableSize);
+            writeInts(out, nodeTokens, nodeCount);
+            writeInts(out, childOffsets, nodeCount + 1);
+            writeInts(out, successorOffsets, nodeCount + 1);
+            writeInts(out, successorTokens, successorIndex);
+            writeInts(out, successorCumulative, successorIndex);
+            for (byte[] text : texts) {
+                out.write(text, 0, text.length);
+            }
+            out.flush();
+            channel.force(true);
+        } catch (IOException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+        try {
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+    }
+
+    public static MappedModel open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Model file is too large to be mapped: " + size + " bytes");
+            }
+            return new MappedModel(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    private final ByteBuffer data;
+
+    private final int maxContextSize;
+    private final int tokenCount;
+    private final int hashTableSize;
+    private final int nodeCount;
+    private final int successorCount;
+
+    private final int textOffsetsPosition;
+    private final int startCumulativePosition;
+    private final int hashTablePosition;
+    private final int nodeTokensPosition;
+    private final int childOffsetsPosition;
+    private final int successorOffsetsPosition;
+    private final int successorTokensPosition;
+    private final int successorCumulativePosition;
+    private final int textsPosition;
+
+    private MappedModel(ByteBuffer data) throws IOException {
+        this.data = data;
+
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC_NUMBER) {
+            throw new IOException("Invalid mapped model magic number!");
+        }
+        int version = data.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported mapped model version: " + version);
+        }
+        this.maxContextSize = data.getInt(8);
+        this.tokenCount = data.getInt(12);
+        int textsLength = data.getInt(16);
+        this.hashTableSize = data.getInt(20);
+        this.nodeCount = data.getInt(24);
+        this.successorCount = data.getInt(28);
+
+        this.textOffsetsPosition = HEADER_SIZE;
+        this.startCumulativePosition = this.textOffsetsPosition + (this.tokenCount + 1) * Integer.BYTES;
+        this.hashTablePosition = this.startCumulativePosition + this.tokenCount * Integer.BYTES;
+        this.nodeTokensPosition = this.hashTablePosition + this.hashTableSize * Integer.BYTES;
+        this.childOffsetsPosition = this.nodeTokensPosition + this.nodeCount * Integer.BYTES;
+        this.successorOffsetsPosition = this.childOffsetsPosition + (this.nodeCount + 1) * Integer.BYTES;
+        this.successorTokensPosition = this.successorOffsetsPosition + (this.nodeCount + 1) * Integer.BYTES;
+        this.successorCumulativePosition = this.successorTokensPosition + this.successorCount * Integer.BYTES;
+        this.textsPosition = this.successorCumulativePosition + this.successorCount * Integer.BYTES;
+
+        if ((long) this.textsPosition + textsLength != data.capacity()) {
+            throw new IOException("Mapped model size does not match its header!");
+        }
+    }
+
+    private int intAt(int position, int index) {
+        return this.data.getInt(position + index * Integer.BYTES);
+    }
+
+    @Override
+    public int getMaxContextSize() {
+        return this.maxContextSize;
+    }
+
+    public int getTokenCount() {
+        return tokenCount;
+    }
+
+    public int getContextCount() {
+        return this.nodeCount - 1;
+    }
+
+    private boolean matches(int token, CharSequence text, int start, int end) {
+        int position = this.textsPosition + intAt(this.textOffsetsPosition, token);
+        int limit = this.textsPosition + intAt(this.textOffsetsPosition, token + 1);
+        for (int i = start; i < end;) {
+            int codePoint = Utf8.codePointAt(text, i, end);
+            int length = Utf8.length(codePoint);
+            if ((position + length) > limit) {
+                return false;
+            }
+            for (int k = 0; k < length; k++) {
+                if (this.data.get(position++) != Utf8.byteAt(codePoint, length, k)) {
+                    return false;
+                }
+            }
+            i += Utf8.charCount(codePoint);
+        }
+        return position == limit;
+    }
+
+    @Override
+    protected int getToken(CharSequence text, int start, int end, boolean createNew) {
+        if (createNew) {
+            throw new UnsupportedOperationException("Mapped models are read only.");
+        }
+        int slot = hash(text, start, end) & (this.hashTableSize - 1);
+        int id;
+        while ((id = intAt(this.hashTablePosition, slot) - 1) != Vocabulary.NO_TOKEN) {
+            if (matches(id, text, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & (this.hashTableSize - 1);
+        }
+        return Vocabulary.NO_TOKEN;
+    }
+
+    @Override
+    protected void appendTokenText(int token, StringBuilder out) {
+        Utf8.append(this.data,
+                this.textsPosition + intAt(this.textOffsetsPosition, token),
+                this.textsPosition + intAt(this.textOffsetsPosition, token + 1),
+                out);
+    }
+
+    //index of the first element in [start, end) larger than value
+    private int upperBound(int position, int start, int end, int value) {
+        int low = start;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (intAt(position, middle) > value) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    protected int getRandomStartToken(RandomGenerator random) {
+        if (this.tokenCount == 0) {
+            return Vocabulary.NO_TOKEN;
+        }
+        int total = intAt(this.startCumulativePosition, this.tokenCount - 1);
+        if (total <= 0) {
+            return Vocabulary.NO_TOKEN;
+        }
+        return upperBound(this.startCumulativePosition, 0, this.tokenCount, random.nextInt(total));
+    }
+
+    private int getChild(int node, int token) {
+        int low = intAt(this.childOffsetsPosition, node);
+        int high = intAt(this.childOffsetsPosition, node + 1) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleToken = intAt(this.nodeTokensPosition, middle);
+            if (middleToken < token) {
+                low = middle + 1;
+            } else if (middleToken > token) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    protected int getNextToken(RandomGenerator random, int[] window, int newest, int available) {
+        int node = 0;
+        int tokenIndex = newest;
+        for (int j = 0; j < Math.min(available, this.maxContextSize); j++) {
+            int child = getChild(node, window[tokenIndex]);
+            if (child < 0) {
+                break;
+            }
+            node = child;
+            tokenIndex = (tokenIndex == 0 ? window.length : tokenIndex) - 1;
+        }
+
+        if (node == 0) {
+            return Vocabulary.NO_TOKEN;
+        }
+
+        int start = intAt(this.successorOffsetsPosition, node);
+        int end = intAt(this.successorOffsetsPosition, node + 1);
+        if (start == end) {
+            return Vocabulary.NO_TOKEN;
+        }
+        int total = intAt(this.successorCumulativePosition, end - 1);
+        int index = upperBound(this.successorCumulativePosition, start, end, random.nextInt(total));
+        return intAt(this.successorTokensPosition, index);
+    }
+
+}
@@ -0,0 +1,154 @@
+package cientistavuador.cienbot.ai;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ *
+ * @author Cien
+ */
+public class ModelSnapshot {
+
+    public static final int MAGIC_NUMBER = 0x4D4F444C;
+    public static final int VERSION = 1;
+
+    //spilled contexts are copied from the spill file as they use the same format
+    static void writeContext(DataOutputStream out, Context context, SpillFile spill) throws IOException {
+        if (spill != null && context.isSpilled()) {
+            synchronized (context) {
+                byte[] record = (context.isSpilled() ? spill.read(context.getToken()) : null);
+                if (record != null) {
+                    out.write(record);
+                    return;
+                }
+            }
+        }
+
+        out.writeInt(context.getToken());
+        out.writeInt(context.getNextTokenCount(Vocabulary.NO_TOKEN));
+
+        int[] nextTokens = context.getNextTokens();
+        out.writeInt(nextTokens.length);
+        for (int next : nextTokens) {
+            out.writeInt(next);
+            out.writeInt(context.getNextTokenCount(next));
+        }
+
+        Context[] children = context.getChildren();
+        out.writeInt(children.length);
+        for (Context child : children) {
+            writeContext(out, child, spill);
+        }
+    }
+
+    //returns the number of contexts read
+    static int readChildren(DataInputStream in, Context parent) throws IOException {
+        int read = 0;
+        int childrenLength = in.readInt();
+        for (int i = 0; i < childrenLength; i++) {
+            Context context = parent.getOrCreateChild(in.readInt());
+            readCounts(in, context);
+            read += 1 + readChildren(in, context);
+        }
+        return read;
+    }
+
+    static void readCounts(DataInputStream in, Context context) throws IOException {
+        int nullCount = in.readInt();
+        if (nullCount != 0) {
+            context.addNextTokenCount(Vocabulary.NO_TOKEN, nullCount);
+        }
+        int nextTokensLength = in.readInt();
+        for (int i = 0; i < nextTokensLength; i++) {
+            int next = in.readInt();
+            int count = in.readInt();
+            context.addNextTokenCount(next, count);
+        }
+    }
+
+    //the sketch of approximate counting is not part of the format
+    public static byte[] serialize(CienBot bot) {
+        if (bot.getApproximateCounting() != null) {
+            throw new IllegalArgumentException("snapshots of approximate counting models are not supported");
+        }
+        try {
+            ByteArrayOutputStream byteArray = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(byteArray)) {
+                out.writeInt(MAGIC_NUMBER);
+                out.writeInt(VERSION);
+                out.writeInt(bot.getMaxContextSize());
+
+                Vocabulary vocabulary = bot.getVocabulary();
+                int vocabularySize = vocabulary.size();
+                out.writeInt(vocabularySize);
+                for (int i = 0; i < vocabularySize; i++) {
+                    byte[] text = vocabulary.getTextBytes(i);
+                    out.writeInt(text.length);
+                    out.write(text, 0, text.length);
+                }
+
+                StartDistribution starts = bot.getStartDistribution();
+                for (int i = 0; i < vocabularySize; i++) {
+                    out.writeInt(starts.getCount(i));
+                }
+
+                writeContext(out, bot.getRoot(), bot.getSpillFile());
+            }
+            return byteArray.toByteArray();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public static CienBot deserialize(byte[] snapshot) {
+        try {
+            ByteArrayInputStream byteArray = new ByteArrayInputStream(snapshot);
+            try (DataInputStream in = new DataInputStream(byteArray)) {
+                if (in.readInt() != MAGIC_NUMBER) {
+                    throw new IOException("Invalid model snapshot magic number!");
+                }
+                int version = in.readInt();
+                if (version != VERSION) {
+                    throw new IOException("Unsupported model snapshot version: " + version);
+                }
+
+                CienBot bot = new CienBot(in.readInt());
+
+                Vocabulary vocabulary = bot.getVocabulary();
+                int vocabularySize = in.readInt();
+                for (int i = 0; i < vocabularySize; i++) {
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    vocabulary.restore(text);
+                }
+
+                StartDistribution starts = bot.getStartDistribution();
+                for (int i = 0; i < vocabularySize; i++) {
+                    int count = in.readInt();
+                    if (count != 0) {
+                        starts.add(i, count);
+                    }
+                }
+
+                Context root = bot.getRoot();
+                in.readInt();
+                readCounts(in, root);
+                readChildren(in, root);
+                bot.recountContexts();
+
+                return bot;
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private ModelSnapshot() {
+
+    }
+
+}
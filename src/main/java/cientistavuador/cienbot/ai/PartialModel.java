@@ -0,0 +1,41 @@
+package cientistavuador.cienbot.ai;
+
+/**
+ *
+ * @author Cien
+ */
+public class PartialModel {
+
+    private final Context root = new Context();
+    private final StartDistribution startDistribution = new StartDistribution();
+
+    public PartialModel() {
+
+    }
+
+    public Context getRoot() {
+        return root;
+    }
+
+    public StartDistribution getStartDistribution() {
+        return startDistribution;
+    }
+
+    //returns the number of contexts created and successors added
+    public long[] merge(PartialModel other) {
+        return mergeInto(other.root, other.startDistribution, this.root, this.startDistribution);
+    }
+
+    public long[] mergeInto(Context targetRoot, StartDistribution targetStartDistribution) {
+        return mergeInto(this.root, this.startDistribution, targetRoot, targetStartDistribution);
+    }
+
+    private static long[] mergeInto(
+            Context sourceRoot, StartDistribution sourceStartDistribution,
+            Context targetRoot, StartDistribution targetStartDistribution
+    ) {
+        targetStartDistribution.addAll(sourceStartDistribution);
+        return targetRoot.merge(sourceRoot);
+    }
+
+}
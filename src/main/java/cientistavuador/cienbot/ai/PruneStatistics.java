@@ -0,0 +1,72 @@
+package cientistavuador.cienbot.ai;
+
+/**
+ *
+ * @author Cien
+ */
+public class PruneStatistics {
+
+    private final long memoryBudget;
+    private final long bytesBefore;
+    private final long bytesAfter;
+    private final long evictedContexts;
+    private final long evictedSuccessors;
+    private final int countThreshold;
+    private final long durationNanos;
+
+    public PruneStatistics(
+            long memoryBudget,
+            long bytesBefore, long bytesAfter,
+            long evictedContexts, long evictedSuccessors,
+            int countThreshold, long durationNanos
+    ) {
+        this.memoryBudget = memoryBudget;
+        this.bytesBefore = bytesBefore;
+        this.bytesAfter = bytesAfter;
+        this.evictedContexts = evictedContexts;
+        this.evictedSuccessors = evictedSuccessors;
+        this.countThreshold = countThreshold;
+        this.durationNanos = durationNanos;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public long getBytesBefore() {
+        return bytesBefore;
+    }
+
+    public long getBytesAfter() {
+        return bytesAfter;
+    }
+
+    public long getEvictedContexts() {
+        return evictedContexts;
+    }
+
+    public long getEvictedSuccessors() {
+        return evictedSuccessors;
+    }
+
+    public int getCountThreshold() {
+        return countThreshold;
+    }
+
+    public long getDurationNanos() {
+        return durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder b = new StringBuilder();
+        b.append("Memory Budget: ").append(this.memoryBudget).append(" bytes").append("\n");
+        b.append("Estimated Size: ").append(this.bytesBefore).append(" -> ").append(this.bytesAfter).append(" bytes").append("\n");
+        b.append("Evicted Contexts: ").append(this.evictedContexts).append("\n");
+        b.append("Evicted Successors: ").append(this.evictedSuccessors).append("\n");
+        b.append("Count Threshold: ").append(this.countThreshold).append("\n");
+        b.append("Duration: ").append(this.durationNanos / 1_000_000).append(" ms").append("\n");
+        return b.toString();
+    }
+
+}
@@ -0,0 +1,172 @@
+package cientistavuador.cienbot.ai;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ *
+ * @author Cien
+ */
+class SpillFile implements Closeable {
+
+    //garbage is only compacted after it reaches this size and the size of the live records
+    public static final long COMPACT_THRESHOLD = 16 * 1024 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+
+    //record of each spilled first token, offset -1 if the token is not spilled
+    private long[] offsets = new long[0];
+    private int[] lengths = new int[0];
+    private int[] contexts = new int[0];
+
+    private volatile long[] lastAccess = new long[0];
+
+    private long end = 0;
+    private long garbage = 0;
+    private volatile long spilledContexts = 0;
+
+    public SpillFile(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.DELETE_ON_CLOSE
+        );
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public synchronized long getSize() {
+        return this.end;
+    }
+
+    public long getSpilledContexts() {
+        return spilledContexts;
+    }
+
+    private synchronized long[] growLastAccess(int token) {
+        long[] access = this.lastAccess;
+        if (token >= access.length) {
+            access = Arrays.copyOf(access, Math.max(token + 1, access.length * 2));
+            this.lastAccess = access;
+        }
+        return access;
+    }
+
+    public void touch(int token) {
+        long[] access = this.lastAccess;
+        if (token >= access.length) {
+            access = growLastAccess(token);
+        }
+        access[token] = System.nanoTime();
+    }
+
+    public long getLastAccess(int token) {
+        long[] access = this.lastAccess;
+        if (token >= access.length) {
+            return Long.MIN_VALUE;
+        }
+        return access[token];
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Spill file is truncated!");
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    public synchronized void write(int token, byte[] record, int contextCount) throws IOException {
+        if (token >= this.offsets.length) {
+            int oldLength = this.offsets.length;
+            int newLength = Math.max(token + 1, oldLength * 2);
+            this.offsets = Arrays.copyOf(this.offsets, newLength);
+            this.lengths = Arrays.copyOf(this.lengths, newLength);
+            this.contexts = Arrays.copyOf(this.contexts, newLength);
+            Arrays.fill(this.offsets, oldLength, newLength, -1);
+        }
+        if (this.offsets[token] >= 0) {
+            throw new IllegalStateException("token " + token + " is already spilled");
+        }
+        writeFully(ByteBuffer.wrap(record), this.end);
+        this.offsets[token] = this.end;
+        this.lengths[token] = record.length;
+        this.contexts[token] = contextCount;
+        this.end += record.length;
+        this.spilledContexts += contextCount;
+    }
+
+    //null if the token is not spilled
+    public synchronized byte[] read(int token) throws IOException {
+        if (token >= this.offsets.length || this.offsets[token] < 0) {
+            return null;
+        }
+        byte[] record = new byte[this.lengths[token]];
+        readFully(ByteBuffer.wrap(record), this.offsets[token]);
+        return record;
+    }
+
+    public synchronized void release(int token) throws IOException {
+        if (token >= this.offsets.length || this.offsets[token] < 0) {
+            return;
+        }
+        this.offsets[token] = -1;
+        this.garbage += this.lengths[token];
+        this.spilledContexts -= this.contexts[token];
+        if (this.garbage >= COMPACT_THRESHOLD && this.garbage > (this.end - this.garbage)) {
+            compact();
+        }
+    }
+
+    //moves the live records to the start of the file in order, each one only moves backwards
+    private void compact() throws IOException {
+        Integer[] tokens = new Integer[this.offsets.length];
+        int length = 0;
+        for (int i = 0; i < this.offsets.length; i++) {
+            if (this.offsets[i] >= 0) {
+                tokens[length++] = i;
+            }
+        }
+        tokens = Arrays.copyOf(tokens, length);
+        Arrays.sort(tokens, (a, b) -> Long.compare(this.offsets[a], this.offsets[b]));
+
+        long position = 0;
+        for (int token : tokens) {
+            if (this.offsets[token] != position) {
+                ByteBuffer record = ByteBuffer.allocate(this.lengths[token]);
+                readFully(record, this.offsets[token]);
+                record.flip();
+                writeFully(record, position);
+                this.offsets[token] = position;
+            }
+            position += this.lengths[token];
+        }
+        this.channel.truncate(position);
+        this.end = position;
+        this.garbage = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+}
@@ -0,0 +1,156 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.random.RandomGenerator;
+
+/**
+ *
+ * @author Cien
+ */
+public class StartDistribution {
+
+    //marks a cell that was already copied to a larger tree
+    private static final int MOVED = Integer.MIN_VALUE;
+
+    //fenwick tree, index zero is unused
+    private volatile AtomicIntegerArray tree = new AtomicIntegerArray(64 + 1);
+
+    public StartDistribution() {
+
+    }
+
+    private synchronized void grow(AtomicIntegerArray old, int token) {
+        if (this.tree != old) {
+            return;
+        }
+        int capacity = old.length() - 1;
+        int newCapacity = capacity;
+        while (token >= newCapacity) {
+            newCapacity *= 2;
+        }
+        AtomicIntegerArray newTree = new AtomicIntegerArray(newCapacity + 1);
+        for (int i = 1; i <= capacity; i++) {
+            newTree.set(i, old.getAndSet(i, MOVED));
+        }
+        //cells above the old capacity cover only new tokens (zero)
+        //except for the powers of two, which cover every old token
+        int total = newTree.get(capacity);
+        for (int p = capacity * 2; p <= newCapacity; p *= 2) {
+            newTree.set(p, total);
+        }
+        this.tree = newTree;
+    }
+
+    public void add(int token, int amount) {
+        if (token < 0) {
+            throw new IllegalArgumentException("invalid token " + token);
+        }
+        AtomicIntegerArray t = this.tree;
+        while (token >= t.length() - 1) {
+            grow(t, token);
+            t = this.tree;
+        }
+        int i = token + 1;
+        while (i < t.length()) {
+            int value = t.get(i);
+            if (value == MOVED) {
+                //continue from the same cell on the new tree
+                t = this.tree;
+                continue;
+            }
+            if (t.compareAndSet(i, value, value + amount)) {
+                i += (i & -i);
+            }
+        }
+    }
+
+    public void increment(int token) {
+        add(token, 1);
+    }
+
+    public void addAll(StartDistribution other) {
+        AtomicIntegerArray t = other.tree;
+        int capacity = t.length() - 1;
+        for (int token = 0; token < capacity; token++) {
+            int count = other.getCount(token);
+            if (count != 0) {
+                add(token, count);
+            }
+        }
+    }
+
+    private int prefixSum(AtomicIntegerArray t, int end) {
+        int sum = 0;
+        for (int i = end; i > 0; i -= (i & -i)) {
+            int value = t.get(i);
+            if (value == MOVED) {
+                return MOVED;
+            }
+            sum += value;
+        }
+        return sum;
+    }
+
+    public int getCount(int token) {
+        while (true) {
+            AtomicIntegerArray t = this.tree;
+            if (token < 0 || token >= t.length() - 1) {
+                return 0;
+            }
+            int end = prefixSum(t, token + 1);
+            int start = prefixSum(t, token);
+            if (end != MOVED && start != MOVED) {
+                return end - start;
+            }
+        }
+    }
+
+    public int getTotal() {
+        while (true) {
+            AtomicIntegerArray t = this.tree;
+            int total = t.get(t.length() - 1);
+            if (total != MOVED) {
+                return total;
+            }
+        }
+    }
+
+    public int sample(RandomGenerator random) {
+        retry:
+        while (true) {
+            AtomicIntegerArray t = this.tree;
+            int capacity = t.length() - 1;
+            int total = t.get(capacity);
+            if (total == MOVED) {
+                continue;
+            }
+            if (total <= 0) {
+                return Vocabulary.NO_TOKEN;
+            }
+
+            int randomValue = random.nextInt(total);
+
+            int position = 0;
+            for (int step = capacity; step > 0; step >>= 1) {
+                int next = position + step;
+                if (next > capacity) {
+                    continue;
+                }
+                int value = t.get(next);
+                if (value == MOVED) {
+                    continue retry;
+                }
+                if (value <= randomValue) {
+                    position = next;
+                    randomValue -= value;
+                }
+            }
+
+            if (position >= capacity) {
+                continue;
+            }
+            return position;
+        }
+    }
+
+}
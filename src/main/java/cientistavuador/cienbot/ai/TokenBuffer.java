@@ -0,0 +1,41 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author Cien
+ */
+class TokenBuffer {
+
+    private int[] tokens = new int[16];
+    private int length = 0;
+
+    public TokenBuffer() {
+
+    }
+
+    public int[] array() {
+        return tokens;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public int get(int index) {
+        return this.tokens[index];
+    }
+
+    public void add(int token) {
+        if (this.length == this.tokens.length) {
+            this.tokens = Arrays.copyOf(this.tokens, this.length * 2);
+        }
+        this.tokens[this.length++] = token;
+    }
+
+    public void clear() {
+        this.length = 0;
+    }
+
+}
@@ -0,0 +1,120 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ *
+ * @author Cien
+ */
+public class TokenStream implements Iterator<String> {
+
+    private final LanguageModel model;
+    private final LanguageModel.Generator generator;
+    private final int maxTokens;
+
+    private int maxCharacters = Integer.MAX_VALUE;
+    private long deadline = 0;
+    private boolean hasDeadline = false;
+
+    private int characters = 0;
+    private String nextText = null;
+    private boolean finished = false;
+
+    TokenStream(LanguageModel model, LanguageModel.Generator generator, int maxTokens) {
+        this.model = model;
+        this.generator = generator;
+        this.maxTokens = maxTokens;
+    }
+
+    public int getMaxTokens() {
+        return maxTokens;
+    }
+
+    public int getMaxCharacters() {
+        return maxCharacters;
+    }
+
+    //length of the text joined with spaces
+    public void setMaxCharacters(int maxCharacters) {
+        if (maxCharacters < 0) {
+            throw new IllegalArgumentException("max characters must not be negative");
+        }
+        this.maxCharacters = maxCharacters;
+    }
+
+    //deadline in System.nanoTime() time
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+        this.hasDeadline = true;
+    }
+
+    public void setTimeout(long timeoutNanos) {
+        setDeadline(System.nanoTime() + timeoutNanos);
+    }
+
+    public int getCharacters() {
+        return characters;
+    }
+
+    public boolean isFinished() {
+        return this.finished && this.nextText == null;
+    }
+
+    private int separator() {
+        return (this.characters == 0 ? 0 : 1);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.nextText != null) {
+            return true;
+        }
+        if (this.finished) {
+            return false;
+        }
+        if (this.hasDeadline && (System.nanoTime() - this.deadline) >= 0) {
+            this.finished = true;
+            return false;
+        }
+
+        int token = this.model.next(this.generator, this.maxTokens);
+        if (token == Vocabulary.NO_TOKEN) {
+            this.finished = true;
+            return false;
+        }
+
+        StringBuilder b = this.generator.output;
+        b.setLength(0);
+        this.model.appendTokenText(token, b);
+        if (((long) this.characters) + separator() + b.length() > this.maxCharacters) {
+            this.finished = true;
+            return false;
+        }
+        this.nextText = b.toString();
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String text = this.nextText;
+        this.nextText = null;
+        this.characters += separator() + text.length();
+        return text;
+    }
+
+    public String join() {
+        StringBuilder b = new StringBuilder();
+        while (hasNext()) {
+            if (b.length() != 0) {
+                b.append(' ');
+            }
+            b.append(next());
+        }
+        return b.toString();
+    }
+
+}
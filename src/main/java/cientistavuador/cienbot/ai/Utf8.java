@@ -0,0 +1,114 @@
+package cientistavuador.cienbot.ai;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author Cien
+ */
+class Utf8 {
+
+    public static final int REPLACEMENT = '?';
+
+    //code point at index, unpaired surrogates are kept as they are (encoded in three bytes like wtf-8)
+    //so tokens that only differ by a broken surrogate don't collapse into the same text
+    public static int codePointAt(CharSequence text, int index, int end) {
+        char c = text.charAt(index);
+        if (Character.isHighSurrogate(c) && (index + 1) < end) {
+            char low = text.charAt(index + 1);
+            if (Character.isLowSurrogate(low)) {
+                return Character.toCodePoint(c, low);
+            }
+        }
+        return c;
+    }
+
+    public static int charCount(int codePoint) {
+        return (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT ? 2 : 1);
+    }
+
+    public static int length(int codePoint) {
+        if (codePoint < 0x80) {
+            return 1;
+        }
+        if (codePoint < 0x800) {
+            return 2;
+        }
+        if (codePoint < 0x10000) {
+            return 3;
+        }
+        return 4;
+    }
+
+    //byte k of the n bytes long encoding of a code point
+    public static byte byteAt(int codePoint, int n, int k) {
+        if (n == 1) {
+            return (byte) codePoint;
+        }
+        int shift = 6 * (n - 1 - k);
+        if (k == 0) {
+            return (byte) (((0xFF00 >> n) & 0xFF) | (codePoint >> shift));
+        }
+        return (byte) (0x80 | ((codePoint >> shift) & 0x3F));
+    }
+
+    //decodes the utf-8 bytes in [start, end) into out
+    public static void append(byte[] bytes, int start, int end, StringBuilder out) {
+        int position = start;
+        while (position < end) {
+            int lead = bytes[position++] & 0xFF;
+            int length = sequenceLength(lead);
+            if (length == 0 || (position + length - 1) > end) {
+                out.appendCodePoint(REPLACEMENT);
+                continue;
+            }
+            int codePoint = (length == 1 ? lead : lead & (0x7F >> length));
+            for (int k = 1; k < length; k++) {
+                codePoint = (codePoint << 6) | (bytes[position++] & 0x3F);
+            }
+            out.appendCodePoint(codePoint);
+        }
+    }
+
+    public static void append(ByteBuffer bytes, int start, int end, StringBuilder out) {
+        int position = start;
+        while (position < end) {
+            int lead = bytes.get(position++) & 0xFF;
+            int length = sequenceLength(lead);
+            if (length == 0 || (position + length - 1) > end) {
+                out.appendCodePoint(REPLACEMENT);
+                continue;
+            }
+            int codePoint = (length == 1 ? lead : lead & (0x7F >> length));
+            for (int k = 1; k < length; k++) {
+                codePoint = (codePoint << 6) | (bytes.get(position++) & 0x3F);
+            }
+            out.appendCodePoint(codePoint);
+        }
+    }
+
+    private Utf8() {
+
+    }
+
+    //number of bytes of a sequence starting with the given byte, zero if invalid
+    public static int sequenceLength(int leadByte) {
+        if (leadByte < 0x80) {
+            return 1;
+        }
+        if (leadByte < 0xC0) {
+            return 0;
+        }
+        if (leadByte < 0xE0) {
+            return 2;
+        }
+        if (leadByte < 0xF0) {
+            return 3;
+        }
+        if (leadByte < 0xF8) {
+            return 4;
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,219 @@
+package cientistavuador.cienbot.ai;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ *
+ * @author Cien
+ */
+public class Vocabulary {
+
+    public static final int NO_TOKEN = -1;
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(int[].class);
+
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Table {
+
+        //token id + 1, zero is empty
+        final int[] slots;
+        final int[] hashes;
+
+        Table(int size) {
+            this.slots = new int[size];
+            this.hashes = new int[size];
+        }
+    }
+
+    private volatile Table table = new Table(128);
+
+    //utf-8 text of every token, token id starts at textOffsets[id] and ends at textOffsets[id + 1]
+    private volatile byte[] arena = new byte[1024];
+    private volatile int[] textOffsets = new int[64 + 1];
+    private volatile int size = 0;
+
+    public Vocabulary() {
+
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    private boolean matches(int id, CharSequence text, int start, int end) {
+        int[] offsets = this.textOffsets;
+        byte[] bytes = this.arena;
+        int position = offsets[id];
+        int limit = offsets[id + 1];
+        for (int i = start; i < end;) {
+            int codePoint = Utf8.codePointAt(text, i, end);
+            int length = Utf8.length(codePoint);
+            if ((position + length) > limit) {
+                return false;
+            }
+            for (int k = 0; k < length; k++) {
+                if (bytes[position++] != Utf8.byteAt(codePoint, length, k)) {
+                    return false;
+                }
+            }
+            i += Utf8.charCount(codePoint);
+        }
+        return position == limit;
+    }
+
+    private int[] offsetsFor(int id) {
+        int[] offsets = this.textOffsets;
+        if ((id + 1) == offsets.length) {
+            offsets = Arrays.copyOf(offsets, ((offsets.length - 1) * 2) + 1);
+        }
+        return offsets;
+    }
+
+    //appends the utf-8 encoding of the text to the arena, must hold the lock
+    private void store(int id, CharSequence text, int start, int end) {
+        int[] offsets = offsetsFor(id);
+        byte[] bytes = this.arena;
+        int position = offsets[id];
+        for (int i = start; i < end;) {
+            int codePoint = Utf8.codePointAt(text, i, end);
+            int length = Utf8.length(codePoint);
+            if ((position + length) > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + length));
+            }
+            for (int k = 0; k < length; k++) {
+                bytes[position++] = Utf8.byteAt(codePoint, length, k);
+            }
+            i += Utf8.charCount(codePoint);
+        }
+        offsets[id + 1] = position;
+        this.arena = bytes;
+        this.textOffsets = offsets;
+    }
+
+    private int find(Table t, int hash, CharSequence text, int start, int end) {
+        int mask = t.slots.length - 1;
+        int slot = hash & mask;
+        int value;
+        while ((value = (int) SLOTS.getAcquire(t.slots, slot)) != 0) {
+            int id = value - 1;
+            if (t.hashes[slot] == hash && matches(id, text, start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NO_TOKEN;
+    }
+
+    private void insert(Table t, int hash, int id) {
+        int mask = t.slots.length - 1;
+        int slot = hash & mask;
+        while (t.slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        t.hashes[slot] = hash;
+        SLOTS.setRelease(t.slots, slot, id + 1);
+    }
+
+    public int getId(CharSequence text, int start, int end) {
+        return find(this.table, hash(text, start, end), text, start, end);
+    }
+
+    public int getId(CharSequence text) {
+        return getId(text, 0, text.length());
+    }
+
+    public int getOrCreateId(CharSequence text, int start, int end) {
+        Objects.requireNonNull(text, "text is null");
+        int hash = hash(text, start, end);
+        int id = find(this.table, hash, text, start, end);
+        if (id != NO_TOKEN) {
+            return id;
+        }
+        synchronized (this) {
+            Table t = this.table;
+            id = find(t, hash, text, start, end);
+            if (id != NO_TOKEN) {
+                return id;
+            }
+            int newId = this.size;
+            store(newId, text, start, end);
+            publish(t, hash, newId);
+            return newId;
+        }
+    }
+
+    //must hold the lock
+    private void publish(Table t, int hash, int newId) {
+        if ((newId + 1) * 2 > t.slots.length) {
+            Table newTable = new Table(t.slots.length * 2);
+            for (int i = 0; i < t.slots.length; i++) {
+                if (t.slots[i] != 0) {
+                    insert(newTable, t.hashes[i], t.slots[i] - 1);
+                }
+            }
+            insert(newTable, hash, newId);
+            this.table = newTable;
+        } else {
+            insert(t, hash, newId);
+        }
+        this.size = newId + 1;
+    }
+
+    //appends the stored bytes of a token as the next id without reencoding them,
+    //used by snapshots so every id comes back exactly where it was
+    synchronized int restore(byte[] text) {
+        Objects.requireNonNull(text, "text is null");
+        StringBuilder b = new StringBuilder();
+        Utf8.append(text, 0, text.length, b);
+
+        int newId = this.size;
+        int[] offsets = offsetsFor(newId);
+        byte[] bytes = this.arena;
+        int position = offsets[newId];
+        if ((position + text.length) > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + text.length));
+        }
+        System.arraycopy(text, 0, bytes, position, text.length);
+        offsets[newId + 1] = position + text.length;
+        this.arena = bytes;
+        this.textOffsets = offsets;
+
+        publish(this.table, hash(b, 0, b.length()), newId);
+        return newId;
+    }
+
+    public int getOrCreateId(CharSequence text) {
+        return getOrCreateId(text, 0, text.length());
+    }
+
+    public int getArenaSize() {
+        return this.textOffsets[this.size];
+    }
+
+    public void appendText(int id, StringBuilder out) {
+        int[] offsets = this.textOffsets;
+        Utf8.append(this.arena, offsets[id], offsets[id + 1], out);
+    }
+
+    public String getText(int id) {
+        StringBuilder b = new StringBuilder();
+        appendText(id, b);
+        return b.toString();
+    }
+
+    public byte[] getTextBytes(int id) {
+        int[] offsets = this.textOffsets;
+        return Arrays.copyOfRange(this.arena, offsets[id], offsets[id + 1]);
+    }
+
+}
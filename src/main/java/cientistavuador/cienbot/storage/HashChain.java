@@ -41,6 +41,17 @@ public class HashChain {
         }
     }
     
+    //resumes a chain from the state it had right after a doFinal
+    public HashChain(SecretKey masterKey, byte[] hash, long counter) {
+        this(masterKey);
+        if (hash.length != this.hash.length) {
+            throw new IllegalArgumentException("invalid hash length " + hash.length);
+        }
+        System.arraycopy(hash, 0, this.hash, 0, hash.length);
+        update(this.hash);
+        this.counter = counter;
+    }
+    
     private void updateImpl(byte b) {
         this.mac.update(b);
     }
@@ -68,6 +79,10 @@ public class HashChain {
     public long getCounter() {
         return counter;
     }
+
+    SecretKey getMasterKey() {
+        return masterKey;
+    }
     
     public void update(byte[] input, int offset, int len) {
         updateImpl(input, offset, len);
@@ -4,14 +4,18 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.Arrays;
 import java.util.Objects;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
@@ -28,17 +32,137 @@ public class PacketCipher {
     public static final int IV_SIZE = 12;
     public static final int AUTHENTICATION_TAG_SIZE = 128;
 
+    //iv, then the encrypted counter and hash of the chain with its tag
+    public static final int CHECKPOINT_SIZE = IV_SIZE + 8 + HashChain.SIGNATURE_SIZE + (AUTHENTICATION_TAG_SIZE / 8);
+
+    private static final byte[] CHECKPOINT_KEY_INFO = "CienBOT Checkpoint".getBytes(StandardCharsets.UTF_8);
+    private static final SecureRandom CHECKPOINT_RANDOM = new SecureRandom();
+
+    private static final ThreadLocal<Cipher> DECRYPT_CIPHERS = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(CIPHER_ALGORITHM);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
+            throw new RuntimeException(ex);
+        }
+    });
+
+    //a packet already past the hash chain, can be decrypted on any thread
+    static class SealedPacket {
+
+        private final SecretKey key;
+        private final byte[] iv;
+        private final byte[] data;
+
+        SealedPacket(SecretKey key, byte[] iv, byte[] data) {
+            this.key = key;
+            this.iv = iv;
+            this.data = data;
+        }
+
+        Packet open() throws IOException {
+            byte[] serializedPacket;
+            try {
+                Cipher c = DECRYPT_CIPHERS.get();
+                GCMParameterSpec gcm = new GCMParameterSpec(AUTHENTICATION_TAG_SIZE, this.iv);
+                c.init(Cipher.DECRYPT_MODE, this.key, gcm);
+                serializedPacket = c.doFinal(this.data);
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
+                throw new IOException(ex);
+            }
+            return new Packet(serializedPacket);
+        }
+
+        //bytes the packet takes in the stream
+        int size() {
+            return 4 + this.data.length;
+        }
+
+        PacketKey withoutData() {
+            return new PacketKey(this.key, this.iv, this.data.length);
+        }
+    }
+
+    //what the hash chain gives to a packet, so its data can be read again later to open it
+    static class PacketKey {
+
+        private final SecretKey key;
+        private final byte[] iv;
+        private final int length;
+
+        PacketKey(SecretKey key, byte[] iv, int length) {
+            this.key = key;
+            this.iv = iv;
+            this.length = length;
+        }
+
+        int length() {
+            return this.length;
+        }
+
+        SealedPacket seal(byte[] data) {
+            if (data.length != this.length) {
+                throw new IllegalArgumentException("expected " + this.length + " bytes, got " + data.length);
+            }
+            return new SealedPacket(this.key, this.iv, data);
+        }
+    }
+
+    private static SecretKey getCheckpointKey(SecretKey masterKey) {
+        try {
+            Mac mac = Mac.getInstance(HashChain.MAC_ALGORITHM);
+            mac.init(masterKey);
+            return new SecretKeySpec(mac.doFinal(CHECKPOINT_KEY_INFO), "AES");
+        } catch (NoSuchAlgorithmException | InvalidKeyException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    //resumes decryption from a checkpoint written by writeCheckpoint
+    public static PacketCipher readCheckpoint(DataInputStream in, SecretKey masterKey, byte[] associatedData) throws IOException {
+        byte[] iv = new byte[IV_SIZE];
+        in.readFully(iv);
+        byte[] sealedState = new byte[CHECKPOINT_SIZE - IV_SIZE];
+        in.readFully(sealedState);
+
+        byte[] state;
+        try {
+            Cipher c = DECRYPT_CIPHERS.get();
+            GCMParameterSpec gcm = new GCMParameterSpec(AUTHENTICATION_TAG_SIZE, iv);
+            c.init(Cipher.DECRYPT_MODE, getCheckpointKey(masterKey), gcm);
+            c.updateAAD(associatedData);
+            state = c.doFinal(sealedState);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
+            throw new IOException(ex);
+        }
+
+        ByteBuffer b = ByteBuffer.wrap(state);
+        long counter = b.getLong();
+        byte[] hash = new byte[HashChain.SIGNATURE_SIZE];
+        b.get(hash);
+        return new PacketCipher(new HashChain(masterKey, hash, counter), false);
+    }
+
     private final HashChain hashChain;
     private final Cipher cipher;
 
-    public PacketCipher(HashChain hashChain) {
+    private PacketCipher(HashChain hashChain, boolean finish) {
         this.hashChain = Objects.requireNonNull(hashChain, "hash chain is null");
         try {
             this.cipher = Cipher.getInstance(CIPHER_ALGORITHM);
         } catch (NoSuchAlgorithmException | NoSuchPaddingException ex) {
             throw new RuntimeException(ex);
         }
-        this.hashChain.doFinal();
+        if (finish) {
+            this.hashChain.doFinal();
+        }
+    }
+
+    public PacketCipher(HashChain hashChain) {
+        this(hashChain, true);
+    }
+
+    HashChain getHashChain() {
+        return hashChain;
     }
 
     private int getPacketSizeKey(byte[] lastSignature) {
@@ -88,33 +212,65 @@ public class PacketCipher {
         out.write(packetData, 0, packetData.length);
     }
 
-    public Packet decrypt(DataInputStream in) throws IOException {
+    //encrypts the state of the hash chain so another stream can continue it
+    public void writeCheckpoint(DataOutputStream out, byte[] associatedData) throws IOException {
+        byte[] iv = new byte[IV_SIZE];
+        CHECKPOINT_RANDOM.nextBytes(iv);
+
+        byte[] state = ByteBuffer.allocate(8 + HashChain.SIGNATURE_SIZE)
+                .putLong(this.hashChain.getCounter())
+                .put(this.hashChain.getHash())
+                .array();
+
+        byte[] sealedState;
+        try {
+            Cipher c = this.cipher;
+            GCMParameterSpec gcm = new GCMParameterSpec(AUTHENTICATION_TAG_SIZE, iv);
+            c.init(Cipher.ENCRYPT_MODE, getCheckpointKey(this.hashChain.getMasterKey()), gcm);
+            c.updateAAD(associatedData);
+            sealedState = c.doFinal(state);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
+            throw new IOException(ex);
+        }
+
+        out.write(iv, 0, iv.length);
+        out.write(sealedState, 0, sealedState.length);
+    }
+
+    //the sequential part of decrypt, the hash chain only needs the encrypted data
+    //returns null at the end of the stream or if the last packet was not completely written,
+    //remaining is the number of bytes left in the stream
+    SealedPacket read(DataInputStream in, long remaining) throws IOException {
         byte[] lastSignature = this.hashChain.getHash();
         int packetSizeKey = getPacketSizeKey(lastSignature);
         byte[] iv = getIV(lastSignature);
 
         try {
-            byte[] packetData = new byte[packetSizeKey ^ in.readInt()];
+            //a crash can leave a zero filled tail when the file size reached the disk before the data,
+            //its size decodes to a random number
+            int packetSize = packetSizeKey ^ in.readInt();
+            if (packetSize < 0 || packetSize > (remaining - 4)) {
+                return null;
+            }
+            byte[] packetData = new byte[packetSize];
             in.readFully(packetData);
 
             SecretKey packetKey = generatePacketKey();
-
-            byte[] serializedPacket;
-            try {
-                Cipher c = this.cipher;
-                GCMParameterSpec gcm = new GCMParameterSpec(AUTHENTICATION_TAG_SIZE, iv);
-                c.init(Cipher.DECRYPT_MODE, packetKey, gcm);
-                serializedPacket = c.doFinal(packetData);
-            } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException ex) {
-                throw new IOException(ex);
-            }
             
             updateHashChain(packetSizeKey ^ packetData.length, packetData);
             
-            return new Packet(serializedPacket);
+            return new SealedPacket(packetKey, iv, packetData);
         } catch (EOFException ex) {
             return null;
         }
     }
 
+    public Packet decrypt(DataInputStream in) throws IOException {
+        SealedPacket sealed = read(in, Long.MAX_VALUE);
+        if (sealed == null) {
+            return null;
+        }
+        return sealed.open();
+    }
+
 }
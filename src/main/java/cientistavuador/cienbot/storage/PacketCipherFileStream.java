@@ -7,18 +7,31 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
 import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
@@ -31,9 +44,22 @@ import javax.crypto.spec.SecretKeySpec;
  */
 public class PacketCipherFileStream {
 
-    public static final String MAGIC_NUMBER = "<7efe60a9bfbcac76> CienBOT V1.0";
+    public static final String MAGIC_NUMBER = "<7efe60a9bfbcac76> CienBOT V1.1";
+    public static final String LEGACY_MAGIC_NUMBER = "<7efe60a9bfbcac76> CienBOT V1.0";
     public static final int SECRET_KEY_ITERATIONS = 1_000_000;
     public static final int SALT_SIZE = 32;
+    public static final int FILE_ID_SIZE = 32;
+
+    //legacy files have no file id, their salt is used as one
+    public static final int HEADER_SIZE = SALT_SIZE + FILE_ID_SIZE + (HashChain.SIGNATURE_SIZE * 3);
+    public static final int LEGACY_HEADER_SIZE = SALT_SIZE + (HashChain.SIGNATURE_SIZE * 2);
+    public static final int SEGMENT_HEADER_SIZE = FILE_ID_SIZE + PacketCipher.CHECKPOINT_SIZE;
+
+    //packets decrypting ahead of the one being delivered, per worker
+    public static final int DECRYPT_PIPELINE_DEPTH = 16;
+
+    //a new segment file is started once the current one reaches this size
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
 
     private static byte[] generateSalt() throws IOException {
         try {
@@ -89,6 +115,12 @@ public class PacketCipherFileStream {
         }
     }
 
+    private static byte[] generateFileId() {
+        byte[] fileId = new byte[FILE_ID_SIZE];
+        new SecureRandom().nextBytes(fileId);
+        return fileId;
+    }
+
     private static SecretKey getSecretKey(byte[] salt, char[] password, int iterations) throws IOException {
         try {
             SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
@@ -102,12 +134,91 @@ public class PacketCipherFileStream {
             throw new IOException(ex);
         }
     }
-    
+
+    private static void signMagicNumber(HashChain chain, String magicNumber) {
+        byte[] magicData = magicNumber.getBytes(StandardCharsets.UTF_8);
+        chain.updateInt(magicData.length);
+        chain.update(magicData);
+        chain.doFinal();
+    }
+
+    //the file id starts a different chain for every file written with the same key
+    private static HashChain writeHeader(DataOutputStream o, byte[] salt, byte[] fileId, SecretKey key) throws IOException {
+        o.write(salt, 0, salt.length);
+
+        HashChain chain = new HashChain(key);
+
+        chain.update(salt);
+        chain.doFinal();
+        o.write(chain.getHash(), 0, HashChain.SIGNATURE_SIZE);
+
+        signMagicNumber(chain, MAGIC_NUMBER);
+        o.write(chain.getHash(), 0, HashChain.SIGNATURE_SIZE);
+
+        o.write(fileId, 0, fileId.length);
+        chain.update(fileId);
+        chain.doFinal();
+        o.write(chain.getHash(), 0, HashChain.SIGNATURE_SIZE);
+
+        return chain;
+    }
+
+    private static int getWorkers() {
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        return Math.max(pool.getParallelism(), Runtime.getRuntime().availableProcessors());
+    }
+
+    //checkpoints are bound to the database they belong to and to their position
+    private static byte[] getAssociatedData(byte[] fileId, int segment) {
+        return ByteBuffer.allocate(fileId.length + 4).put(fileId).putInt(segment).array();
+    }
+
+    //segments start with the file id of the database they belong to
+    private static byte[] readFileId(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return in.readNBytes(FILE_ID_SIZE);
+        }
+    }
+
     private final Path file;
 
+    //the password itself is never kept, compaction reuses the key under a new file id
+    private SecretKey key;
+    private byte[] salt;
+    private byte[] fileId;
     private PacketCipher cipher;
+    private FileChannel channel;
     private DataOutputStream out;
 
+    //segment zero is the file itself, the ones after it are sealed except for the last
+    private int segment = 0;
+    private long segmentStart = 0;
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+
+    //end of the last complete packet of the last segment found by replay
+    private long replayEnd = 0;
+    private long truncatedBytes = 0;
+
+    //packets written and packets known to be on disk
+    private volatile long written = 0;
+    private volatile long synced = 0;
+    private long covered = 0;
+    private long pendingSince = 0;
+
+    private final Object syncLock = new Object();
+    private volatile int syncPackets = 0;
+    private volatile long syncInterval = 0;
+    private volatile long lastSync = System.nanoTime();
+    private Thread syncThread = null;
+
+    private volatile long syncCount = 0;
+    private volatile long totalCommitLatency = 0;
+    private volatile long maxCommitLatency = 0;
+
+    //a failed write or force leaves the file out of step with the hash chain or with lost data,
+    //every write, flush and sync after it fails with it
+    private volatile IOException failure = null;
+
     public PacketCipherFileStream(Path file) {
         this.file = Objects.requireNonNull(file, "file is null");
     }
@@ -116,6 +227,128 @@ public class PacketCipherFileStream {
         return file;
     }
 
+    public Path getSegmentFile(int index) {
+        if (index == 0) {
+            return this.file;
+        }
+        return this.file.resolveSibling(this.file.getFileName() + "." + index);
+    }
+
+    public synchronized int getSegmentCount() {
+        return this.segment + 1;
+    }
+
+    public synchronized List<Path> getFiles() {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i <= this.segment; i++) {
+            files.add(getSegmentFile(i));
+        }
+        return files;
+    }
+
+    public long getSize() throws IOException {
+        long size = 0;
+        for (Path f : getFiles()) {
+            size += Files.size(f);
+        }
+        return size;
+    }
+
+    //bytes of a packet that was not completely written removed from the end when opening
+    public long getTruncatedBytes() {
+        return truncatedBytes;
+    }
+
+    public void setSegmentSize(long segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("invalid segment size " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    //forces the file once this many packets are waiting, zero disables and one syncs every packet
+    public void setSyncPackets(int packets) {
+        if (packets < 0) {
+            throw new IllegalArgumentException("negative sync packets: " + packets);
+        }
+        this.syncPackets = packets;
+    }
+
+    public int getSyncPackets() {
+        return syncPackets;
+    }
+
+    //forces the file at most this many milliseconds after a packet is written, zero disables
+    public void setSyncInterval(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("negative sync interval: " + millis);
+        }
+        synchronized (this.syncLock) {
+            this.syncInterval = millis;
+            if (millis > 0 && this.syncThread == null) {
+                Thread t = new Thread(this::syncLoop, "Packet Sync");
+                t.setDaemon(true);
+                this.syncThread = t;
+                t.start();
+            }
+        }
+    }
+
+    public long getSyncInterval() {
+        return syncInterval;
+    }
+
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    //nanoseconds between the first packet of a commit being written and it reaching the disk
+    public long getAverageCommitLatency() {
+        synchronized (this.syncLock) {
+            if (this.syncCount == 0) {
+                return 0;
+            }
+            return this.totalCommitLatency / this.syncCount;
+        }
+    }
+
+    public long getMaxCommitLatency() {
+        return maxCommitLatency;
+    }
+
+    public long getPendingPackets() {
+        return this.written - this.synced;
+    }
+
+    public IOException getFailure() {
+        return failure;
+    }
+
+    private IOException fail(IOException ex) {
+        if (this.failure == null) {
+            this.failure = ex;
+        }
+        return ex;
+    }
+
+    private void checkFailure() throws IOException {
+        IOException f = this.failure;
+        if (f != null) {
+            throw new IOException("A previous write to the database failed!", f);
+        }
+    }
+
+    //must hold the lock
+    private void openOutput(FileChannel c) throws IOException {
+        this.channel = c;
+        this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+        this.segmentStart = c.size();
+    }
+
     public void init(char[] password) throws IOException, InvalidPasswordException {
         if (this.cipher != null) {
             throw new IOException("Already initialized!");
@@ -134,7 +367,8 @@ public class PacketCipherFileStream {
                 byte[] fileMagicSignature = new byte[HashChain.SIGNATURE_SIZE];
                 data.readFully(fileMagicSignature);
                 
-                HashChain chain = new HashChain(getSecretKey(salt, password, SECRET_KEY_ITERATIONS));
+                SecretKey key = getSecretKey(salt, password, SECRET_KEY_ITERATIONS);
+                HashChain chain = new HashChain(key);
 
                 chain.update(salt);
                 chain.doFinal();
@@ -144,52 +378,280 @@ public class PacketCipherFileStream {
                     throw new InvalidPasswordException("Password is invalid.");
                 }
                 
-                byte[] magicData = MAGIC_NUMBER.getBytes(StandardCharsets.UTF_8);
-                chain.updateInt(magicData.length);
-                chain.update(magicData);
-                chain.doFinal();
-                byte[] magicSignature = chain.getHash();
-
-                if (!MessageDigest.isEqual(fileMagicSignature, magicSignature)) {
+                HashChain legacy = new HashChain(key, chain.getHash(), chain.getCounter());
+                signMagicNumber(chain, MAGIC_NUMBER);
+                signMagicNumber(legacy, LEGACY_MAGIC_NUMBER);
+
+                byte[] fileId;
+                long headerSize;
+                if (MessageDigest.isEqual(fileMagicSignature, chain.getHash())) {
+                    fileId = new byte[FILE_ID_SIZE];
+                    data.readFully(fileId);
+
+                    byte[] fileIdSignature = new byte[HashChain.SIGNATURE_SIZE];
+                    data.readFully(fileIdSignature);
+
+                    chain.update(fileId);
+                    chain.doFinal();
+                    if (!MessageDigest.isEqual(fileIdSignature, chain.getHash())) {
+                        throw new IOException("Invalid file id!");
+                    }
+                    headerSize = HEADER_SIZE;
+                } else if (MessageDigest.isEqual(fileMagicSignature, legacy.getHash())) {
+                    chain = legacy;
+                    fileId = salt;
+                    headerSize = LEGACY_HEADER_SIZE;
+                } else {
                     throw new IOException("Invalid magic number!");
                 }
 
                 PacketCipher c = new PacketCipher(chain);
                 
-                Packet p;
-                while ((p = c.decrypt(data)) != null) {
-                    onPacketRead(p);
+                this.cipher = replay(c, headerSize, fileId, key);
+                this.key = key;
+                this.salt = salt;
+                this.fileId = fileId;
+            }
+
+            //a crash while appending leaves part of a packet that would hide every packet written after it
+            FileChannel c = FileChannel.open(getSegmentFile(this.segment), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            try {
+                long size = c.size();
+                if (size > this.replayEnd) {
+                    c.truncate(this.replayEnd);
+                    c.force(true);
+                    this.truncatedBytes = size - this.replayEnd;
                 }
-                
-                this.cipher = c;
+            } catch (IOException ex) {
+                c.close();
+                throw ex;
             }
-            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.file, StandardOpenOption.APPEND)));
+            openOutput(c);
         } else {
             Path parent = this.file.getParent();
             if (parent != null) {
                 Files.createDirectories(parent);
             }
-            DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(this.file, StandardOpenOption.CREATE)));
+            openOutput(FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE));
 
             byte[] salt = generateSalt();
-            o.write(salt, 0, salt.length);
+            byte[] fileId = generateFileId();
+            SecretKey key = getSecretKey(salt, password, SECRET_KEY_ITERATIONS);
+            HashChain chain = writeHeader(this.out, salt, fileId, key);
 
-            HashChain chain = new HashChain(getSecretKey(salt, password, SECRET_KEY_ITERATIONS));
+            this.out.flush();
 
-            chain.update(salt);
-            chain.doFinal();
-            o.write(chain.getHash(), 0, HashChain.SIGNATURE_SIZE);
+            this.cipher = new PacketCipher(chain);
+            this.key = key;
+            this.salt = salt;
+            this.fileId = fileId;
+        }
+    }
 
-            byte[] magicData = MAGIC_NUMBER.getBytes(StandardCharsets.UTF_8);
-            chain.updateInt(magicData.length);
-            chain.update(magicData);
-            chain.doFinal();
-            o.write(chain.getHash(), 0, HashChain.SIGNATURE_SIZE);
+    //the hash chain is walked in order on the reading thread while the common pool decrypts,
+    //packets are still delivered in the order they were written
+    private class DecryptPipeline {
 
-            o.flush();
+        private final int window;
+        private final ArrayDeque<CompletableFuture<Packet>> pending = new ArrayDeque<>();
 
-            this.cipher = new PacketCipher(chain);
-            this.out = o;
+        DecryptPipeline() {
+            int workers = getWorkers();
+            this.window = (workers <= 1 ? 0 : workers * DECRYPT_PIPELINE_DEPTH);
+        }
+
+        void submit(PacketCipher.SealedPacket sealed) throws IOException {
+            if (this.window == 0) {
+                onPacketRead(sealed.open());
+                return;
+            }
+            this.pending.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return sealed.open();
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }, ForkJoinPool.commonPool()));
+            if (this.pending.size() >= this.window) {
+                deliver(this.pending.poll());
+            }
+        }
+
+        void finish() throws IOException {
+            while (!this.pending.isEmpty()) {
+                deliver(this.pending.poll());
+            }
+        }
+
+        void cancel() {
+            for (CompletableFuture<Packet> f : this.pending) {
+                f.cancel(false);
+            }
+            this.pending.clear();
+        }
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof UncheckedIOException u) {
+                throw u.getCause();
+            }
+            if (ex.getCause() instanceof RuntimeException r) {
+                throw r;
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private void deliver(CompletableFuture<Packet> future) throws IOException {
+        onPacketRead(join(future));
+    }
+
+    //number of segments after the file that belong to this file id, older ones are left from before a compaction
+    private int countSegments(byte[] fileId) throws IOException {
+        int count = 0;
+        Path next;
+        while (Files.isRegularFile(next = getSegmentFile(count + 1)) && Arrays.equals(readFileId(next), fileId)) {
+            count++;
+        }
+        next = getSegmentFile(count + 2);
+        if (Files.isRegularFile(next) && Arrays.equals(readFileId(next), fileId)) {
+            throw new IOException("Segment " + (count + 1) + " is missing!");
+        }
+        return count;
+    }
+
+    private static DataInputStream openData(Path file) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+    }
+
+    //the hash chain of a segment walked from where it starts, only the keys of its packets are kept
+    private static class SegmentWalk {
+
+        final int index;
+        final PacketCipher cipher;
+        final long startCounter;
+        final byte[] startHash;
+        final long start;
+        final List<PacketCipher.PacketKey> packets = new ArrayList<>();
+        long end;
+
+        SegmentWalk(int index, PacketCipher cipher, long start) {
+            HashChain chain = cipher.getHashChain();
+            this.index = index;
+            this.cipher = cipher;
+            this.startCounter = chain.getCounter();
+            this.startHash = chain.getHash();
+            this.start = start;
+        }
+
+        //must only be called once the previous segment was walked
+        boolean continues(SegmentWalk previous) {
+            HashChain end = previous.cipher.getHashChain();
+            return end.getCounter() == this.startCounter && MessageDigest.isEqual(end.getHash(), this.startHash);
+        }
+    }
+
+    //segment zero continues the chain of the header, the others resume from their checkpoint,
+    //with a direct pipeline the packets are delivered as they are read instead of keeping their keys
+    private SegmentWalk walk(int index, PacketCipher header, long headerSize, byte[] fileId, SecretKey key,
+            SegmentWalk previous, DecryptPipeline direct) throws IOException {
+        Path f = getSegmentFile(index);
+        long size = Files.size(f);
+        try (DataInputStream data = openData(f)) {
+            SegmentWalk w;
+            if (index == 0) {
+                data.skipNBytes(headerSize);
+                w = new SegmentWalk(index, header, headerSize);
+            } else {
+                try {
+                    data.skipNBytes(FILE_ID_SIZE);
+                    w = new SegmentWalk(index,
+                            PacketCipher.readCheckpoint(data, key, getAssociatedData(fileId, index)),
+                            SEGMENT_HEADER_SIZE);
+                } catch (IOException ex) {
+                    throw new IOException("Segment " + index + " is corrupted!", ex);
+                }
+            }
+            if (previous != null && !w.continues(previous)) {
+                throw new IOException("Segment " + index + " does not continue the previous one!");
+            }
+
+            long position = w.start;
+            PacketCipher.SealedPacket sealed;
+            while ((sealed = w.cipher.read(data, size - position)) != null) {
+                position += sealed.size();
+                if (direct != null) {
+                    direct.submit(sealed);
+                } else {
+                    w.packets.add(sealed.withoutData());
+                }
+            }
+            w.end = position;
+            return w;
+        }
+    }
+
+    //reads the packets of a walked segment again and decrypts them
+    private void deliver(SegmentWalk w, DecryptPipeline pipeline) throws IOException {
+        try (DataInputStream data = openData(getSegmentFile(w.index))) {
+            data.skipNBytes(w.start);
+            for (PacketCipher.PacketKey k : w.packets) {
+                data.readInt();
+                byte[] packetData = new byte[k.length()];
+                data.readFully(packetData);
+                pipeline.submit(k.seal(packetData));
+            }
+        }
+    }
+
+    //segments walk their hash chains in parallel from their checkpoints, at most one per worker ahead
+    //of the one being delivered, each checkpoint must match where the previous segment ended
+    //reading every segment twice only pays off with more than one segment and worker
+    private PacketCipher replay(PacketCipher c, long headerSize, byte[] fileId, SecretKey key) throws IOException {
+        int count = countSegments(fileId);
+        int ahead = getWorkers();
+        List<CompletableFuture<SegmentWalk>> walks = new ArrayList<>();
+        DecryptPipeline pipeline = new DecryptPipeline();
+        try {
+            SegmentWalk previous = null;
+            for (int i = 0; i <= count; i++) {
+                if (count == 0 || ahead <= 1) {
+                    previous = walk(i, c, headerSize, fileId, key, previous, pipeline);
+                    continue;
+                }
+                while (walks.size() <= Math.min(i + ahead, count)) {
+                    int index = walks.size();
+                    walks.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return walk(index, c, headerSize, fileId, key, null, null);
+                        } catch (IOException ex) {
+                            throw new UncheckedIOException(ex);
+                        }
+                    }, ForkJoinPool.commonPool()));
+                }
+                SegmentWalk w = join(walks.get(i));
+                walks.set(i, null);
+                if (previous != null && !w.continues(previous)) {
+                    throw new IOException("Segment " + i + " does not continue the previous one!");
+                }
+                deliver(w, pipeline);
+                previous = w;
+            }
+            pipeline.finish();
+
+            this.segment = count;
+            this.replayEnd = previous.end;
+            return previous.cipher;
+        } finally {
+            pipeline.cancel();
+            for (CompletableFuture<SegmentWalk> f : walks) {
+                if (f != null) {
+                    f.cancel(false);
+                }
+            }
         }
     }
 
@@ -201,16 +663,234 @@ public class PacketCipherFileStream {
         if (this.cipher == null) {
             throw new IOException("Not initialized!");
         }
-        
-        this.cipher.encrypt(this.out, p);
+        checkFailure();
+
+        //rotating before writing means a packet is either written or reported as failed
+        if ((this.segmentStart + this.out.size()) >= this.segmentSize) {
+            rotate();
+        }
+
+        if (this.written == this.covered) {
+            this.pendingSince = System.nanoTime();
+        }
+        try {
+            this.cipher.encrypt(this.out, p);
+        } catch (IOException ex) {
+            throw fail(ex);
+        }
+        this.written++;
     }
 
-    public void flush() throws IOException {
+    //seals the current segment and continues the chain on a new one, must hold the lock
+    //if the new segment can't be created the current one is kept and the next write tries again
+    private void rotate() throws IOException {
+        try {
+            this.out.flush();
+            this.channel.force(false);
+        } catch (IOException ex) {
+            throw fail(ex);
+        }
+
+        int index = this.segment + 1;
+        Path next = getSegmentFile(index);
+        Path temporary = next.resolveSibling(next.getFileName() + ".tmp");
+        try (FileChannel c = FileChannel.open(temporary,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+            o.write(this.fileId, 0, this.fileId.length);
+            this.cipher.writeCheckpoint(o, getAssociatedData(this.fileId, index));
+            o.flush();
+            c.force(true);
+        }
+        //a segment only appears once its checkpoint is complete
+        try {
+            Files.move(temporary, next, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+
+        //the chain continues on the new segment from here, the current one can't take more packets
+        this.out.close();
+        this.segment = index;
+        try {
+            openOutput(FileChannel.open(next, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        } catch (IOException ex) {
+            throw fail(ex);
+        }
+    }
+
+    //replaces the file with one that only has the given packets, under a new file id
+    public void compact(List<Packet> packets) throws IOException {
+        Objects.requireNonNull(packets, "packets is null");
         if (this.cipher == null) {
             throw new IOException("Not initialized!");
         }
 
-        this.out.flush();
+        byte[] fileId = generateFileId();
+
+        synchronized (this) {
+            Path temporary = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+
+            PacketCipher c;
+            try (FileChannel channel = FileChannel.open(temporary,
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                c = new PacketCipher(writeHeader(o, this.salt, fileId, this.key));
+                for (Packet p : packets) {
+                    c.encrypt(o, p);
+                }
+                o.flush();
+                channel.force(true);
+            } catch (IOException ex) {
+                Files.deleteIfExists(temporary);
+                throw ex;
+            }
+
+            this.out.close();
+            try {
+                Files.move(temporary, this.file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                Files.deleteIfExists(temporary);
+                openOutput(FileChannel.open(getSegmentFile(this.segment), StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+                throw ex;
+            }
+
+            //segments of the old file id are ignored on init even if some are left behind
+            for (int i = this.segment; i > 0; i--) {
+                Files.deleteIfExists(getSegmentFile(i));
+            }
+
+            this.cipher = c;
+            this.fileId = fileId;
+            this.segment = 0;
+            openOutput(FileChannel.open(this.file, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        }
+    }
+
+    //copies every file to a .bak sibling, sealed segments never change so existing copies of them are kept
+    public void backup() throws IOException {
+        List<Path> files = getFiles();
+        for (int i = 0; i < files.size(); i++) {
+            Path f = files.get(i);
+            Path b = f.resolveSibling(f.getFileName() + ".bak");
+            boolean sealed = (i > 0 && i < files.size() - 1);
+            if (sealed
+                    && Files.isRegularFile(b)
+                    && Files.size(b) == Files.size(f)
+                    && Arrays.equals(readFileId(b), readFileId(f))) {
+                continue;
+            }
+            Files.copy(f, b, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //writes the buffered packets and forces them to disk if the sync policy asks for it
+    public void flush() throws IOException {
+        long target;
+        synchronized (this) {
+            if (this.cipher == null) {
+                throw new IOException("Not initialized!");
+            }
+            checkFailure();
+            try {
+                this.out.flush();
+            } catch (IOException ex) {
+                throw fail(ex);
+            }
+            target = this.written;
+        }
+
+        int packets = this.syncPackets;
+        long interval = this.syncInterval;
+        if ((packets > 0 && (target - this.synced) >= packets)
+                || (interval > 0 && (System.nanoTime() - this.lastSync) >= interval * 1_000_000L)) {
+            sync(target);
+        }
+    }
+
+    //forces every packet written so far to disk
+    public void sync() throws IOException {
+        long target;
+        synchronized (this) {
+            if (this.cipher == null) {
+                throw new IOException("Not initialized!");
+            }
+            target = this.written;
+        }
+        sync(target);
+    }
+
+    //group commit, callers wait for a single force that covers every packet written before it
+    private void sync(long target) throws IOException {
+        synchronized (this.syncLock) {
+            if (this.synced >= target) {
+                return;
+            }
+            checkFailure();
+
+            FileChannel c;
+            long upTo;
+            long since;
+            synchronized (this) {
+                try {
+                    this.out.flush();
+                } catch (IOException ex) {
+                    throw fail(ex);
+                }
+                c = this.channel;
+                upTo = this.written;
+                since = this.pendingSince;
+                this.covered = upTo;
+            }
+
+            try {
+                c.force(false);
+            } catch (ClosedChannelException ex) {
+                //replaced by compact or rotate, which forced the file before closing it
+            } catch (IOException ex) {
+                throw fail(ex);
+            }
+
+            long now = System.nanoTime();
+            long latency = now - since;
+            this.synced = upTo;
+            this.lastSync = now;
+            this.syncCount++;
+            this.totalCommitLatency += latency;
+            if (latency > this.maxCommitLatency) {
+                this.maxCommitLatency = latency;
+            }
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long interval;
+            synchronized (this.syncLock) {
+                interval = this.syncInterval;
+                if (interval == 0) {
+                    this.syncThread = null;
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(interval);
+                if (this.cipher != null && this.synced < this.written) {
+                    sync();
+                }
+            } catch (InterruptedException | IOException ex) {
+                //a failed sync is kept in failure and thrown by the next write, flush or sync
+                synchronized (this.syncLock) {
+                    this.syncThread = null;
+                }
+                return;
+            }
+        }
     }
 
 }
@@ -13,6 +13,8 @@ public class PacketID {
     public static final int SET_TEXT_CHANNEL = 4;
     public static final int SET_START_ON_OPEN = 5;
     public static final int ADD_MESSAGE = 6;
+    public static final int SET_MODEL_SNAPSHOT = 7;
+    public static final int SET_MEMORY_BUDGET = 8;
     
     private PacketID() {
         
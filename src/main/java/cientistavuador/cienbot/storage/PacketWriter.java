@@ -0,0 +1,198 @@
+package cientistavuador.cienbot.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ *
+ * @author Cien
+ */
+public class PacketWriter implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    public interface Task {
+
+        void run(PacketCipherFileStream stream) throws IOException;
+    }
+
+    private static class Entry {
+
+        //null packet and task only waits for the ones before it
+        final Packet packet;
+        final Task task;
+        final boolean sync;
+        final boolean close;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Entry(Packet packet, Task task, boolean sync, boolean close) {
+            this.packet = packet;
+            this.task = task;
+            this.sync = sync;
+            this.close = close;
+        }
+    }
+
+    private final PacketCipherFileStream stream;
+    private final BlockingQueue<Entry> queue;
+    private final Thread thread;
+    private boolean closed = false;
+
+    public PacketWriter(PacketCipherFileStream stream, int capacity) {
+        this.stream = Objects.requireNonNull(stream, "stream is null");
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("invalid capacity " + capacity);
+        }
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::run, "Packet Writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public PacketWriter(PacketCipherFileStream stream) {
+        this(stream, DEFAULT_CAPACITY);
+    }
+
+    public PacketCipherFileStream getStream() {
+        return stream;
+    }
+
+    public int getQueueSize() {
+        return this.queue.size();
+    }
+
+    //blocks while the queue is full, so callers can't outrun the disk
+    private synchronized CompletableFuture<Void> submit(Entry e) {
+        if (this.closed) {
+            e.future.completeExceptionally(new IOException("Writer closed!"));
+            return e.future;
+        }
+        try {
+            this.queue.put(e);
+            if (e.close) {
+                this.closed = true;
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            e.future.completeExceptionally(ex);
+        }
+        return e.future;
+    }
+
+    //completes once the packet was written and flushed following the stream sync policy
+    public CompletableFuture<Void> write(Packet p) {
+        Objects.requireNonNull(p, "packet is null");
+        return submit(new Entry(p, null, false, false));
+    }
+
+    //completes once every packet submitted before it is on disk
+    public CompletableFuture<Void> sync() {
+        return submit(new Entry(null, null, true, false));
+    }
+
+    //runs the task on the writer thread once every packet submitted before it was written,
+    //the packets submitted after it are only written once it returns
+    public CompletableFuture<Void> execute(Task task) {
+        Objects.requireNonNull(task, "task is null");
+        return submit(new Entry(null, task, false, false));
+    }
+
+    private void run() {
+        List<Entry> batch = new ArrayList<>();
+        boolean running = true;
+        while (running) {
+            try {
+                batch.add(this.queue.take());
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            this.queue.drainTo(batch);
+
+            //a task fails on its own, the packets around it are written as separate batches
+            int start = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                Entry e = batch.get(i);
+                running &= !e.close;
+                if (e.task != null) {
+                    writeBatch(batch.subList(start, i));
+                    runTask(e);
+                    start = i + 1;
+                }
+            }
+            writeBatch(batch.subList(start, batch.size()));
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<Entry> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        Throwable error = null;
+        try {
+            boolean sync = false;
+            for (Entry e : batch) {
+                if (e.packet != null) {
+                    this.stream.writePacket(e.packet);
+                }
+                sync |= e.sync || e.close;
+            }
+            if (sync) {
+                this.stream.sync();
+            } else {
+                this.stream.flush();
+            }
+        } catch (IOException | RuntimeException ex) {
+            error = ex;
+        }
+
+        for (Entry e : batch) {
+            if (error == null) {
+                e.future.complete(null);
+            } else {
+                e.future.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void runTask(Entry e) {
+        try {
+            e.task.run(this.stream);
+            e.future.complete(null);
+        } catch (IOException | RuntimeException ex) {
+            e.future.completeExceptionally(ex);
+        }
+    }
+
+    //writes everything still queued, syncs and stops the writer thread
+    @Override
+    public void close() throws IOException {
+        CompletableFuture<Void> f;
+        synchronized (this) {
+            f = (this.closed ? null : submit(new Entry(null, null, true, true)));
+        }
+        try {
+            if (f != null) {
+                f.get();
+            }
+            this.thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException(ex.getCause());
+        }
+    }
+
+}
@@ -12,7 +12,6 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import javax.swing.JFileChooser;
 import javax.swing.JOptionPane;
@@ -228,8 +227,7 @@ public class LoginWindow extends javax.swing.JFrame {
                 setVisible(false);
                 
                 s.init(pw);
-                Path backupFile = path.getParent().resolve(path.getFileName().toString()+".bak");
-                Files.copy(s.getFile(), backupFile, StandardCopyOption.REPLACE_EXISTING);
+                s.backup();
                 LoginWindow.this.onFileStreamCreated(s);
                 
                 this.password.setText("");
@@ -0,0 +1,158 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ *
+ * @author Cien
+ */
+public class ApproximateCountingBenchmark {
+
+    //messages of 5 to 24 words with zipf distributed words, like chat messages
+    private static List<String> messages(int amount, int words, long seed) {
+        double[] cumulative = new double[words];
+        double sum = 0;
+        for (int i = 0; i < words; i++) {
+            sum += 1.0 / (i + 1);
+            cumulative[i] = sum;
+        }
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            StringBuilder b = new StringBuilder();
+            int length = 5 + random.nextInt(20);
+            for (int j = 0; j < length; j++) {
+                if (j != 0) {
+                    b.append(' ');
+                }
+                int word = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+                b.append("word").append(word < 0 ? -word - 1 : word);
+            }
+            messages.add(b.toString());
+        }
+        return messages;
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static int[] ids(Vocabulary vocabulary, String message) {
+        String[] words = message.split(" ");
+        int[] ids = new int[words.length];
+        for (int i = 0; i < words.length; i++) {
+            ids[i] = vocabulary.getId(words[i]);
+        }
+        return ids;
+    }
+
+    public static void main(String[] args) {
+        int amount = 60_000;
+        if (args.length != 0) {
+            amount = Integer.parseInt(args[0]);
+        }
+        int maxContextSize = 6;
+        int exactContextSize = 2;
+        List<String> messages = messages(amount, 20_000, 42);
+
+        long before = usedMemory();
+        CienBot exact = new CienBot(maxContextSize);
+        exact.teach(messages);
+        long exactMemory = usedMemory() - before;
+
+        System.out.printf("%,d messages, max context size %d, exact context size %d%n",
+                messages.size(), maxContextSize, exactContextSize);
+        System.out.printf("exact: %,d contexts, %,.1f MB retained%n",
+                exact.getContextCount(), exactMemory / 1E6);
+
+        for (int width : new int[]{1 << 20, 1 << 22}) {
+            compare(exact, messages, exactContextSize, width);
+        }
+    }
+
+    private static void compare(CienBot exact, List<String> messages, int exactContextSize, int sketchWidth) {
+        //same ids on both bots so the fingerprints are the same
+        long before = usedMemory();
+        ApproximateCounting counting = new ApproximateCounting(
+                exactContextSize,
+                ApproximateCounting.DEFAULT_HEAVY_HITTERS,
+                sketchWidth,
+                ApproximateCounting.DEFAULT_SKETCH_DEPTH
+        );
+        CienBot approximate = new CienBot(exact.getMaxContextSize(), counting);
+        for (int i = 0; i < exact.getVocabulary().size(); i++) {
+            approximate.getVocabulary().getOrCreateId(exact.getVocabulary().getText(i));
+        }
+        approximate.teach(messages);
+        long approximateMemory = usedMemory() - before;
+
+        System.out.printf("approximate, %d heavy hitters, sketch %d x %d: %,d contexts + %,d in the sketch, %,.1f MB retained (%,.1f MB sketch and heavy hitters)%n",
+                counting.getHeavyHitters(), counting.getSketch().getDepth(), counting.getSketch().getWidth(),
+                approximate.getContextCount(), counting.getContextCount(),
+                approximateMemory / 1E6, counting.getMemoryUsage() / 1E6);
+
+        //every successor of every approximate context once, by the context tokens and the next token
+        long compared = 0;
+        long errorSum = 0;
+        long overestimated = 0;
+        long contexts = 0;
+        long topKept = 0;
+        for (Context context : exact.getContexts()) {
+            if (context.size() <= counting.getExactContextSize()) {
+                continue;
+            }
+            int[] tokens = context.getTokens();
+            long fingerprint = ContextTable.ROOT_FINGERPRINT;
+            for (int i = tokens.length - 1; i >= 0; i--) {
+                fingerprint = ContextTable.fingerprint(fingerprint, tokens[i]);
+            }
+
+            int top = Vocabulary.NO_TOKEN;
+            int topCount = context.getNextTokenCount(Vocabulary.NO_TOKEN);
+            int[] nextTokens = context.getNextTokens();
+            int[] all = Arrays.copyOf(nextTokens, nextTokens.length + 1);
+            all[nextTokens.length] = Vocabulary.NO_TOKEN;
+            for (int next : all) {
+                int count = context.getNextTokenCount(next);
+                if (count == 0) {
+                    continue;
+                }
+                int estimate = counting.getCount(fingerprint, next);
+                errorSum += Math.abs(estimate - count);
+                if (estimate != count) {
+                    overestimated++;
+                }
+                compared++;
+                if (count > topCount) {
+                    top = next;
+                    topCount = count;
+                }
+            }
+            for (int kept : counting.getNextTokens(fingerprint)) {
+                if (kept == top) {
+                    topKept++;
+                    break;
+                }
+            }
+            contexts++;
+        }
+        System.out.printf("  %,d successors of %,d long contexts: mean absolute error %.3f, %.2f%% overestimated, most frequent successor kept in %.2f%%%n",
+                compared, contexts,
+                errorSum / (double) compared,
+                (overestimated * 100.0) / compared,
+                (topKept * 100.0) / contexts);
+
+        //keeps the bot reachable until here
+        if (approximate.getContextCount() == 42) {
+            System.out.println();
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+package cientistavuador.cienbot.ai;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Cien
+ */
+public class CienBotTest {
+
+    @TempDir
+    Path directory;
+
+    private static List<String> messages(int amount, int words, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            StringBuilder b = new StringBuilder();
+            int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                if (j != 0) {
+                    b.append(' ');
+                }
+                b.append("word").append(random.nextInt(words));
+            }
+            messages.add(b.toString());
+        }
+        return messages;
+    }
+
+    @Test
+    public void testBatchTeachingMatchesSequentialStartCounts() {
+        List<String> messages = messages(20000, 3000, 42);
+
+        CienBot sequential = new CienBot(3);
+        for (String message : messages) {
+            sequential.teach(message);
+        }
+        CienBot batch = new CienBot(3);
+        batch.teach(messages);
+
+        Vocabulary sequentialVocabulary = sequential.getVocabulary();
+        Vocabulary batchVocabulary = batch.getVocabulary();
+        assertEquals(sequentialVocabulary.size(), batchVocabulary.size());
+        assertEquals(sequential.getStartDistribution().getTotal(), batch.getStartDistribution().getTotal());
+
+        int starts = 0;
+        for (int token = 0; token < sequentialVocabulary.size(); token++) {
+            String text = sequentialVocabulary.getText(token);
+            int batchToken = batchVocabulary.getId(text);
+            assertNotEquals(Vocabulary.NO_TOKEN, batchToken, text);
+            int count = sequential.getStartDistribution().getCount(token);
+            assertEquals(count, batch.getStartDistribution().getCount(batchToken), text);
+            if (count != 0) {
+                starts++;
+            }
+        }
+        assertTrue(starts > 2000);
+    }
+
+    @Test
+    public void testEstimatedMemoryUsageCountsEverySuccessor() {
+        List<String> messages = messages(20000, 30, 7);
+
+        CienBot sequential = new CienBot(3);
+        for (String message : messages) {
+            sequential.teach(message);
+        }
+        CienBot batch = new CienBot(3);
+        batch.teach(messages);
+
+        for (CienBot bot : new CienBot[]{sequential, batch}) {
+            long contexts = 0;
+            long successors = 0;
+            for (Context context : bot.getContexts()) {
+                contexts++;
+                successors += context.getNextTokensSize();
+            }
+            assertTrue(successors > contexts * 2);
+            assertEquals(contexts, bot.getContextCount());
+            assertEquals((contexts * CienBot.CONTEXT_ESTIMATED_SIZE) + (successors * CienBot.SUCCESSOR_ESTIMATED_SIZE),
+                    bot.getEstimatedMemoryUsage());
+        }
+    }
+
+    @Test
+    public void testSketchBatchTeachingCountsOnce() {
+        List<String> messages = messages(6000, 10, 3);
+
+        //same ids on both so the sketch keys are the same
+        CienBot sequential = new CienBot(4, new ApproximateCounting(1));
+        CienBot batch = new CienBot(4, new ApproximateCounting(1));
+        for (int i = 0; i < 10; i++) {
+            sequential.getVocabulary().getOrCreateId("word" + i);
+            batch.getVocabulary().getOrCreateId("word" + i);
+        }
+
+        for (String message : messages) {
+            sequential.teach(message);
+        }
+        batch.teach(messages);
+
+        Vocabulary sequentialVocabulary = sequential.getVocabulary();
+        Vocabulary batchVocabulary = batch.getVocabulary();
+        assertEquals(sequential.getContextCount(), batch.getContextCount());
+        ApproximateCounting sequentialCounting = sequential.getApproximateCounting();
+        ApproximateCounting batchCounting = batch.getApproximateCounting();
+        assertTrue(sequentialCounting.getContextCount() > 1000);
+        assertEquals(sequentialCounting.getContextCount(), batchCounting.getContextCount());
+
+        //no context objects past the exact context size, those are only in the sketch
+        for (Context context : sequential.getContexts()) {
+            assertTrue(context.size() <= 1);
+        }
+        for (String message : messages) {
+            String[] words = message.split(" ");
+            for (int i = 0; i < words.length; i++) {
+                int next = (i + 1 < words.length ? sequentialVocabulary.getId(words[i + 1]) : Vocabulary.NO_TOKEN);
+                long fingerprint = ContextTable.fingerprint(ContextTable.ROOT_FINGERPRINT, sequentialVocabulary.getId(words[i]));
+                for (int j = 1; j < 4 && (i - j) >= 0; j++) {
+                    fingerprint = ContextTable.fingerprint(fingerprint, sequentialVocabulary.getId(words[i - j]));
+                    int count = sequentialCounting.getCount(fingerprint, next);
+                    assertTrue(count > 0);
+                    assertEquals(count, batchCounting.getCount(fingerprint, next));
+                }
+            }
+        }
+
+        for (Context context : sequential.getContexts()) {
+            Context other = batch.getRoot();
+            for (int i = context.size() - 1; i >= 0; i--) {
+                Context c = context;
+                for (int j = 0; j < i; j++) {
+                    c = c.getParent();
+                }
+                other = other.getChild(batchVocabulary.getId(sequentialVocabulary.getText(c.getToken())));
+            }
+            for (int token = 0; token < sequentialVocabulary.size(); token++) {
+                int batchToken = batchVocabulary.getId(sequentialVocabulary.getText(token));
+                assertEquals(context.getNextTokenCount(token), other.getNextTokenCount(batchToken));
+            }
+        }
+
+        //long contexts are sampled from the heavy hitters, every word was taught after the one before it
+        batch.setSeed(9L);
+        int continued = 0;
+        for (int i = 0; i < 200; i++) {
+            int promptLength = messages.get(i).split(" ").length;
+            String[] generated = batch.generate(messages.get(i), promptLength + 8).split(" ");
+            if (generated.length > promptLength) {
+                continued++;
+            }
+            for (int j = promptLength; j < generated.length; j++) {
+                Context previous = batch.getRoot().getChild(batchVocabulary.getId(generated[j - 1]));
+                assertTrue(previous.getNextTokenCount(batchVocabulary.getId(generated[j])) > 0);
+            }
+        }
+        assertTrue(continued > 100);
+    }
+
+    @Test
+    public void testConcurrentTeachingCountsEveryMessage() throws Exception {
+        List<String> messages = messages(500, 40, 13);
+        int threads = 8;
+
+        CienBot sequential = new CienBot(3);
+        for (String message : messages) {
+            for (int i = 0; i < threads; i++) {
+                sequential.teach(message);
+            }
+        }
+
+        CienBot concurrent = new CienBot(3);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> teachers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread teacher = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                for (String message : messages) {
+                    concurrent.teach(message);
+                }
+            });
+            teacher.start();
+            teachers.add(teacher);
+        }
+        start.countDown();
+        for (Thread teacher : teachers) {
+            teacher.join();
+        }
+
+        Vocabulary sequentialVocabulary = sequential.getVocabulary();
+        Vocabulary concurrentVocabulary = concurrent.getVocabulary();
+        assertEquals(sequentialVocabulary.size(), concurrentVocabulary.size());
+        assertEquals(sequential.getContextCount(), concurrent.getContextCount());
+        assertEquals(sequential.getEstimatedMemoryUsage(), concurrent.getEstimatedMemoryUsage());
+        assertEquals(sequential.getStartDistribution().getTotal(), concurrent.getStartDistribution().getTotal());
+
+        int[] ids = new int[sequentialVocabulary.size()];
+        for (int token = 0; token < ids.length; token++) {
+            ids[token] = concurrentVocabulary.getId(sequentialVocabulary.getText(token));
+            assertNotEquals(Vocabulary.NO_TOKEN, ids[token]);
+            assertEquals(sequential.getStartDistribution().getCount(token),
+                    concurrent.getStartDistribution().getCount(ids[token]));
+        }
+        for (Context context : sequential.getContexts()) {
+            Context other = concurrent.getRoot();
+            int[] tokens = context.getTokens();
+            for (int i = tokens.length - 1; i >= 0; i--) {
+                other = other.getChild(ids[tokens[i]]);
+            }
+            assertEquals(context.getNextTokenTotal(), other.getNextTokenTotal());
+            for (int token : context.getNextTokens()) {
+                assertEquals(context.getNextTokenCount(token), other.getNextTokenCount(ids[token]));
+            }
+        }
+    }
+
+    @Test
+    public void testGenerationKeepsTheMemoryBudget() throws Exception {
+        List<String> messages = messages(20000, 3000, 11);
+        CienBot bot = new CienBot(3);
+        bot.setSpillFile(this.directory.resolve("model.spill"));
+        bot.teach(messages);
+        long budget = bot.getEstimatedMemoryUsage() / 3;
+        bot.setMemoryBudget(budget);
+        assertTrue(bot.getEstimatedMemoryUsage() <= budget);
+        assertTrue(bot.getSpilledContexts() > 0);
+
+        bot.setSeed(5L);
+        for (int i = 0; i < 2000; i++) {
+            bot.generate(messages.get(i), 16);
+        }
+        assertTrue(bot.getHotMisses() > 0);
+        assertTrue(bot.getEstimatedMemoryUsage() <= budget,
+                bot.getEstimatedMemoryUsage() + " over the budget of " + budget);
+        bot.closeSpillFile();
+    }
+
+}
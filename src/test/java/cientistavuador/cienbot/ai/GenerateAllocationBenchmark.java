@@ -0,0 +1,87 @@
+package cientistavuador.cienbot.ai;
+
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ *
+ * @author Cien
+ */
+public class GenerateAllocationBenchmark {
+
+    private static List<String> messages(int amount, int words, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            StringBuilder b = new StringBuilder();
+            int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                if (j != 0) {
+                    b.append(' ');
+                }
+                b.append("word").append(random.nextInt(words));
+            }
+            messages.add(b.toString());
+        }
+        return messages;
+    }
+
+    //size of a latin-1 string with compressed oops, header and hash plus its byte array
+    private static long stringSize(int length) {
+        return 24 + (((16 + length) + 7) & ~7);
+    }
+
+    //bytes allocated by this thread per generate call once the generator buffers are built, and
+    //how much of it is the returned string, the rest are samplers of contexts reached the first time
+    private static double[] allocatedPerCall(ThreadMXBean threads, LanguageModel model, List<String> prompts, int tokens, int calls) {
+        for (int i = 0; i < calls * 5; i++) {
+            model.generate(prompts.get(i % prompts.size()), tokens);
+        }
+
+        long strings = 0;
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < calls; i++) {
+            strings += stringSize(model.generate(prompts.get(i % prompts.size()), tokens).length());
+        }
+        long after = threads.getThreadAllocatedBytes(thread);
+        return new double[]{(after - before) / (double) calls, strings / (double) calls};
+    }
+
+    public static void main(String[] args) throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("thread allocated memory is not supported by this jvm");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        List<String> messages = messages(50_000, 2_000, 42);
+        CienBot bot = new CienBot(4);
+        bot.teach(messages);
+        bot.setSeed(42L);
+
+        Path file = Files.createTempFile("cienbot", ".mapped");
+        try {
+            MappedModel.write(bot, file);
+            MappedModel mapped = MappedModel.open(file);
+            mapped.setSeed(42L);
+
+            int calls = 200_000;
+            for (int tokens : new int[]{1, 16, 64}) {
+                double[] cienbot = allocatedPerCall(threads, bot, messages, tokens, calls);
+                double[] map = allocatedPerCall(threads, mapped, messages, tokens, calls);
+                System.out.printf("%2d tokens: cienbot %,8.1f bytes/call (string %,6.1f), mapped %,8.1f bytes/call (string %,6.1f)%n",
+                        tokens, cienbot[0], cienbot[1], map[0], map[1]);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+package cientistavuador.cienbot.ai;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Cien
+ */
+public class MappedModelTest {
+
+    @TempDir
+    Path directory;
+
+    private static List<String> messages(int amount, int words, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            StringBuilder b = new StringBuilder();
+            int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                if (j != 0) {
+                    b.append(' ');
+                }
+                b.append("word").append(random.nextInt(words));
+            }
+            messages.add(b.toString());
+        }
+        return messages;
+    }
+
+    @Test
+    public void testMappedModelGeneratesTheSameAsTheBot() throws Exception {
+        List<String> messages = messages(5000, 300, 21);
+        CienBot bot = new CienBot(4);
+        bot.teach(messages);
+        bot.teach("olá 😀 \uD800 mundo");
+
+        Path file = this.directory.resolve("model.mapped");
+        MappedModel.write(bot, file);
+        assertFalse(Files.exists(file.resolveSibling("model.mapped.tmp")));
+        MappedModel mapped = MappedModel.open(file);
+        assertEquals(bot.getMaxContextSize(), mapped.getMaxContextSize());
+        assertEquals(bot.getVocabulary().size(), mapped.getTokenCount());
+        assertEquals(bot.getContextCount(), mapped.getContextCount());
+
+        bot.setSeed(77L);
+        mapped.setSeed(77L);
+        int generated = 0;
+        for (int i = 0; i < 200; i++) {
+            String prompt = (i == 0 ? "olá 😀" : messages.get(i * 7));
+            String expected = bot.generate(prompt, 24);
+            assertEquals(expected, mapped.generate(prompt, 24), prompt);
+            if (!expected.isEmpty()) {
+                generated++;
+            }
+        }
+        assertTrue(generated > 150);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(bot.generate(24), mapped.generate(24));
+        }
+    }
+
+    @Test
+    public void testWriteReplacesAnOpenModel() throws Exception {
+        CienBot first = new CienBot(3);
+        first.teach("hello world");
+        CienBot second = new CienBot(3);
+        second.teach(messages(100, 20, 5));
+
+        Path file = this.directory.resolve("model.mapped");
+        MappedModel.write(first, file);
+        MappedModel mapped = MappedModel.open(file);
+        MappedModel.write(second, file);
+
+        //the old mapping still sees the old model
+        assertEquals(first.getContextCount(), mapped.getContextCount());
+        mapped.setSeed(1L);
+        assertEquals("hello world", mapped.generate("hello", 8));
+        assertEquals(second.getContextCount(), MappedModel.open(file).getContextCount());
+    }
+
+}
@@ -0,0 +1,61 @@
+package cientistavuador.cienbot.ai;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Cien
+ */
+public class ModelSnapshotTest {
+
+    @Test
+    public void testRoundTripKeepsLoneSurrogates() {
+        CienBot bot = new CienBot(3);
+        bot.teach("\uD800 hello ? world");
+        bot.teach("\uDC00 hello \uD800 world");
+        bot.teach("? hello world 😀");
+
+        Vocabulary vocabulary = bot.getVocabulary();
+        int high = vocabulary.getId("\uD800");
+        int low = vocabulary.getId("\uDC00");
+        int question = vocabulary.getId("?");
+        assertNotEquals(Vocabulary.NO_TOKEN, high);
+        assertNotEquals(high, low);
+        assertNotEquals(high, question);
+        assertNotEquals(low, question);
+
+        byte[] snapshot = ModelSnapshot.serialize(bot);
+        CienBot restored = ModelSnapshot.deserialize(snapshot);
+        Vocabulary restoredVocabulary = restored.getVocabulary();
+
+        assertEquals(vocabulary.size(), restoredVocabulary.size());
+        for (int i = 0; i < vocabulary.size(); i++) {
+            String text = vocabulary.getText(i);
+            assertEquals(text, restoredVocabulary.getText(i), "token " + i);
+            assertEquals(i, restoredVocabulary.getId(text), "token " + i);
+            assertEquals(bot.getStartDistribution().getCount(i),
+                    restored.getStartDistribution().getCount(i), "token " + i);
+        }
+        assertEquals(bot.getContextCount(), restored.getContextCount());
+        for (int token : new int[]{high, low, question}) {
+            Context context = bot.getRoot().getChild(token);
+            Context restoredContext = restored.getRoot().getChild(token);
+            for (int next : context.getNextTokens()) {
+                assertEquals(context.getNextTokenCount(next), restoredContext.getNextTokenCount(next));
+            }
+            assertArrayEquals(context.getNextTokens(), restoredContext.getNextTokens());
+        }
+    }
+
+    @Test
+    public void testApproximateCountingIsRejected() {
+        CienBot bot = new CienBot(4, new ApproximateCounting(2));
+        bot.teach("hello there world");
+        assertThrows(IllegalArgumentException.class, () -> ModelSnapshot.serialize(bot));
+    }
+
+}
@@ -0,0 +1,72 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.SplittableRandom;
+import java.util.random.RandomGenerator;
+
+/**
+ *
+ * @author Cien
+ */
+public class StartDistributionBenchmark {
+
+    //the sampling done before the fenwick tree, sums every count and then scans for the token
+    private static int linearSample(int[] counts, RandomGenerator random) {
+        int sum = 0;
+        for (int count : counts) {
+            sum += count;
+        }
+        if (sum == 0) {
+            return Vocabulary.NO_TOKEN;
+        }
+        int randomValue = random.nextInt(sum);
+        int offset = 0;
+        for (int token = 0; token < counts.length; token++) {
+            int count = counts[token];
+            if (randomValue >= offset && randomValue < (offset + count)) {
+                return token;
+            }
+            offset += count;
+        }
+        return Vocabulary.NO_TOKEN;
+    }
+
+    public static void main(String[] args) {
+        int samples = 200_000;
+        long blackhole = 0;
+        for (int vocabulary : new int[]{1_000, 10_000, 100_000, 1_000_000}) {
+            int[] counts = new int[vocabulary];
+            StartDistribution distribution = new StartDistribution();
+            SplittableRandom random = new SplittableRandom(vocabulary);
+            for (int token = 0; token < vocabulary; token++) {
+                //most tokens never start a message
+                if (random.nextInt(4) == 0) {
+                    int count = 1 + random.nextInt(100);
+                    counts[token] = count;
+                    distribution.add(token, count);
+                }
+            }
+
+            double linear = 0;
+            double fenwick = 0;
+            for (int round = 0; round < 5; round++) {
+                int linearSamples = Math.max(samples / vocabulary * 100, 100);
+                long time = System.nanoTime();
+                for (int i = 0; i < linearSamples; i++) {
+                    blackhole += linearSample(counts, random);
+                }
+                linear = (System.nanoTime() - time) / (double) linearSamples;
+
+                time = System.nanoTime();
+                for (int i = 0; i < samples; i++) {
+                    blackhole += distribution.sample(random);
+                }
+                fenwick = (System.nanoTime() - time) / (double) samples;
+            }
+
+            System.out.printf("vocabulary %,9d: linear scan %,12.1f ns/sample, fenwick %,8.1f ns/sample%n",
+                    vocabulary, linear, fenwick);
+        }
+        System.out.println(blackhole == 42 ? "" : "done");
+    }
+
+}
@@ -0,0 +1,69 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.SplittableRandom;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author Cien
+ */
+public class StartDistributionTest {
+
+    @Test
+    public void testGrowPastTwiceTheCapacity() {
+        StartDistribution d = new StartDistribution();
+        for (int token = 0; token < 64; token++) {
+            d.add(token, 1);
+        }
+        //64 -> 8192 in a single grow
+        d.add(300, 1000);
+        d.add(511, 1000);
+        d.add(8000, 1000);
+
+        for (int token = 0; token < 64; token++) {
+            assertEquals(1, d.getCount(token), "token " + token);
+        }
+        assertEquals(1000, d.getCount(300));
+        assertEquals(1000, d.getCount(511));
+        assertEquals(1000, d.getCount(8000));
+        assertEquals(0, d.getCount(64));
+        assertEquals(0, d.getCount(4096));
+        assertEquals(64 + 3000, d.getTotal());
+
+        int[] samples = new int[8192];
+        SplittableRandom random = new SplittableRandom(1234);
+        int runs = 300_000;
+        for (int i = 0; i < runs; i++) {
+            samples[d.sample(random)]++;
+        }
+        for (int token : new int[]{300, 511, 8000}) {
+            double expected = runs * 1000.0 / d.getTotal();
+            assertTrue(Math.abs(samples[token] - expected) < expected * 0.05,
+                    "token " + token + " sampled " + samples[token] + " times, expected about " + expected);
+        }
+        int small = 0;
+        for (int token = 0; token < 64; token++) {
+            small += samples[token];
+        }
+        double expected = runs * 64.0 / d.getTotal();
+        assertTrue(Math.abs(small - expected) < expected * 0.15, "first 64 tokens sampled " + small + " times");
+    }
+
+    @Test
+    public void testGrowInSteps() {
+        StartDistribution d = new StartDistribution();
+        for (int token = 0; token < 5000; token += 7) {
+            d.add(token, token + 1);
+        }
+        int total = 0;
+        for (int token = 0; token < 5000; token++) {
+            int expected = (token % 7 == 0 ? token + 1 : 0);
+            assertEquals(expected, d.getCount(token), "token " + token);
+            total += expected;
+        }
+        assertEquals(total, d.getTotal());
+    }
+
+}
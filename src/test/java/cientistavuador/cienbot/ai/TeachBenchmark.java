@@ -0,0 +1,79 @@
+package cientistavuador.cienbot.ai;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ *
+ * @author Cien
+ */
+public class TeachBenchmark {
+
+    private static List<String> messages(int amount, int words, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < amount; i++) {
+            StringBuilder b = new StringBuilder();
+            int length = 1 + random.nextInt(12);
+            for (int j = 0; j < length; j++) {
+                if (j != 0) {
+                    b.append(' ');
+                }
+                b.append("word").append(random.nextInt(words));
+            }
+            messages.add(b.toString());
+        }
+        return messages;
+    }
+
+    //every thread teaches its own slice of the messages with teach(CharSequence)
+    private static double teach(List<String> messages, int threads) throws InterruptedException {
+        CienBot bot = new CienBot(5);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> teachers = new ArrayList<>();
+        int sliceSize = (messages.size() + threads - 1) / threads;
+        for (int i = 0; i < threads; i++) {
+            List<String> slice = messages.subList(
+                    Math.min(i * sliceSize, messages.size()),
+                    Math.min((i + 1) * sliceSize, messages.size())
+            );
+            Thread teacher = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+                for (String message : slice) {
+                    bot.teach(message);
+                }
+            });
+            teacher.start();
+            teachers.add(teacher);
+        }
+        long time = System.nanoTime();
+        start.countDown();
+        for (Thread teacher : teachers) {
+            teacher.join();
+        }
+        return messages.size() / ((System.nanoTime() - time) / 1E9);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = Runtime.getRuntime().availableProcessors() * 2;
+        if (args.length != 0) {
+            maxThreads = Integer.parseInt(args[0]);
+        }
+        List<String> messages = messages(400_000, 20_000, 42);
+        System.out.printf("%d processors%n", Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double throughput = 0;
+            for (int round = 0; round < 3; round++) {
+                throughput = Math.max(throughput, teach(messages, threads));
+            }
+            System.out.printf("%3d threads: %,12.0f messages/s%n", threads, throughput);
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+package cientistavuador.cienbot.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Cien
+ */
+public class PacketCipherFileStreamTest {
+
+    private static List<String> write(PacketCipherFileStream s, int start, int amount) throws IOException {
+        List<String> written = new ArrayList<>();
+        for (int i = start; i < start + amount; i++) {
+            String data = "packet " + i + " " + "x".repeat(i % 97);
+            s.writePacket(new Packet(1, data));
+            written.add(data);
+        }
+        s.sync();
+        return written;
+    }
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testReplayReadsEverySegmentInOrder() throws Exception {
+        Path file = this.directory.resolve("database");
+        RecordingStream s = RecordingStream.open(file);
+        s.setSegmentSize(4096);
+        List<String> written = write(s, 0, 600);
+        assertTrue(s.getSegmentCount() > 5);
+
+        RecordingStream reopened = RecordingStream.open(file);
+        assertEquals(s.getSegmentCount(), reopened.getSegmentCount());
+        assertEquals(written, reopened.packets);
+    }
+
+    @Test
+    public void testBrokenChainBetweenSegmentsIsReported() throws Exception {
+        Path file = this.directory.resolve("database");
+        RecordingStream s = RecordingStream.open(file);
+        s.setSegmentSize(4096);
+        write(s, 0, 600);
+        assertTrue(s.getSegmentCount() > 3);
+
+        //the checkpoint of the next segment no longer matches where this one ends
+        try (FileChannel c = FileChannel.open(s.getSegmentFile(2), StandardOpenOption.WRITE)) {
+            c.truncate(c.size() - 7);
+        }
+        IOException ex = assertThrows(IOException.class, () -> RecordingStream.open(file));
+        assertTrue(ex.getMessage().contains("Segment 3"), ex.getMessage());
+    }
+
+    private static void testTornTail(Path file, long segmentSize, int packets, boolean zeroFilled) throws Exception {
+        RecordingStream s = RecordingStream.open(file);
+        s.setSegmentSize(segmentSize);
+        List<String> written = write(s, 0, packets);
+        List<String> lastPacket = write(s, packets, 1);
+
+        Path last = s.getFiles().get(s.getSegmentCount() - 1);
+        try (FileChannel c = FileChannel.open(last, StandardOpenOption.WRITE)) {
+            if (zeroFilled) {
+                //the file size got to the disk but the data of the next packets did not
+                c.write(ByteBuffer.allocate(4096), c.size());
+                written.addAll(lastPacket);
+            } else {
+                //the last packet only got partly to the disk
+                c.truncate(c.size() - 7);
+            }
+        }
+
+        RecordingStream torn = RecordingStream.open(file);
+        assertEquals(written, torn.packets);
+        assertTrue(torn.getTruncatedBytes() > 0);
+        torn.setSegmentSize(segmentSize);
+        written.addAll(write(torn, packets + 1, 5));
+
+        RecordingStream reopened = RecordingStream.open(file);
+        assertEquals(0, reopened.getTruncatedBytes());
+        assertEquals(written, reopened.packets);
+    }
+
+    @Test
+    public void testTornTailIsTruncated() throws Exception {
+        testTornTail(this.directory.resolve("database"), PacketCipherFileStream.DEFAULT_SEGMENT_SIZE, 20, false);
+    }
+
+    @Test
+    public void testTornTailOfTheLastSegmentIsTruncated() throws Exception {
+        testTornTail(this.directory.resolve("database"), 4096, 200, false);
+    }
+
+    @Test
+    public void testZeroFilledTailIsTruncated() throws Exception {
+        //the size decodes to a different number on every file
+        for (int i = 0; i < 5; i++) {
+            testTornTail(this.directory.resolve("database" + i), PacketCipherFileStream.DEFAULT_SEGMENT_SIZE, 20, true);
+        }
+    }
+
+    @Test
+    public void testZeroFilledTailOfTheLastSegmentIsTruncated() throws Exception {
+        testTornTail(this.directory.resolve("database"), 4096, 200, true);
+    }
+
+    @Test
+    public void testFailedRotationReportsThePacket() throws Exception {
+        Path file = this.directory.resolve("database");
+        RecordingStream s = RecordingStream.open(file);
+        s.setSegmentSize(4096);
+        List<String> written = new ArrayList<>();
+        while (s.getSegmentCount() == 1) {
+            written.addAll(write(s, written.size(), 1));
+        }
+
+        //the next segment can't be created while its temporary file is a directory
+        Path blocker = this.directory.resolve("database.2.tmp");
+        Files.createDirectory(blocker);
+        IOException failure = null;
+        while (failure == null) {
+            try {
+                written.addAll(write(s, written.size(), 1));
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        assertEquals(2, s.getSegmentCount());
+        assertNull(s.getFailure());
+
+        Files.delete(blocker);
+        written.addAll(write(s, written.size(), 10));
+        assertEquals(3, s.getSegmentCount());
+
+        assertEquals(written, RecordingStream.open(file).packets);
+    }
+
+    @Test
+    public void testCompactionKeepsThePassword() throws Exception {
+        Path file = this.directory.resolve("database");
+        RecordingStream s = RecordingStream.open(file);
+        s.setSegmentSize(4096);
+        List<String> written = write(s, 0, 300);
+        assertTrue(s.getSegmentCount() > 2);
+        Path stale = s.getSegmentFile(1);
+        Path staleCopy = this.directory.resolve("stale");
+        Files.copy(stale, staleCopy);
+
+        List<String> kept = new ArrayList<>(written.subList(250, 300));
+        List<Packet> packets = new ArrayList<>();
+        for (String data : kept) {
+            packets.add(new Packet(1, data));
+        }
+        s.setSegmentSize(PacketCipherFileStream.DEFAULT_SEGMENT_SIZE);
+        s.compact(packets);
+        assertEquals(1, s.getSegmentCount());
+        assertFalse(Files.exists(stale));
+        kept.addAll(write(s, 300, 10));
+
+        //a segment left behind by the old file is not part of the compacted one
+        Files.copy(staleCopy, stale);
+        assertEquals(kept, RecordingStream.open(file).packets);
+    }
+
+    @Test
+    public void testLegacyHeaderIsRead() throws Exception {
+        Path file = this.directory.resolve("database");
+        byte[] salt = new byte[PacketCipherFileStream.SALT_SIZE];
+        salt[0] = 42;
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+        SecretKey key = factory.generateSecret(new PBEKeySpec(RecordingStream.PASSWORD, salt, PacketCipherFileStream.SECRET_KEY_ITERATIONS, 256));
+
+        List<String> written = new ArrayList<>();
+        try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+            HashChain chain = new HashChain(key);
+            o.write(salt);
+            chain.update(salt);
+            chain.doFinal();
+            o.write(chain.getHash());
+            byte[] magicData = PacketCipherFileStream.LEGACY_MAGIC_NUMBER.getBytes(StandardCharsets.UTF_8);
+            chain.updateInt(magicData.length);
+            chain.update(magicData);
+            chain.doFinal();
+            o.write(chain.getHash());
+
+            PacketCipher c = new PacketCipher(chain);
+            for (int i = 0; i < 20; i++) {
+                String data = "legacy " + i;
+                c.encrypt(o, new Packet(1, data));
+                written.add(data);
+            }
+        }
+
+        RecordingStream s = RecordingStream.open(file);
+        assertEquals(written, s.packets);
+        s.setSegmentSize(1024);
+        written.addAll(write(s, 0, 50));
+        assertTrue(s.getSegmentCount() > 1);
+        assertEquals(written, RecordingStream.open(file).packets);
+    }
+
+}
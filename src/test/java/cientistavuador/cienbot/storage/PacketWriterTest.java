@@ -0,0 +1,42 @@
+package cientistavuador.cienbot.storage;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author Cien
+ */
+public class PacketWriterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void testTaskRunsAfterTheQueuedPackets() throws Exception {
+        Path file = this.directory.resolve("database");
+        RecordingStream s = RecordingStream.open(file);
+
+        List<String> written = new ArrayList<>();
+        PacketWriter writer = new PacketWriter(s, 16);
+        for (int i = 0; i < 200; i++) {
+            writer.write(new Packet(1, "before " + i));
+        }
+        //replaces everything queued before it
+        writer.execute((stream) -> stream.compact(List.of(new Packet(1, "compacted")))).get();
+        written.add("compacted");
+        for (int i = 0; i < 50; i++) {
+            String data = "after " + i;
+            writer.write(new Packet(1, data));
+            written.add(data);
+        }
+        writer.close();
+
+        assertEquals(written, RecordingStream.open(file).packets);
+    }
+
+}
@@ -0,0 +1,33 @@
+package cientistavuador.cienbot.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * @author Cien
+ */
+class RecordingStream extends PacketCipherFileStream {
+
+    static final char[] PASSWORD = "password".toCharArray();
+
+    static RecordingStream open(Path file) throws IOException, InvalidPasswordException {
+        RecordingStream s = new RecordingStream(file);
+        s.init(PASSWORD);
+        return s;
+    }
+
+    //the data of every packet read, in order
+    final List<String> packets = new ArrayList<>();
+
+    RecordingStream(Path file) {
+        super(file);
+    }
+
+    @Override
+    public void onPacketRead(Packet p) throws IOException {
+        this.packets.add(p.getDataString());
+    }
+}